@@ -3,6 +3,8 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A COFF (common object file format) loader.
@@ -61,6 +63,7 @@ public class Coff {
 	    int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
 	    int flags = Lib.bytesToUnsignedShort(headers, 18);
 	    entryPoint = Lib.bytesToInt(headers, headerLength+16);
+	    symbolTableOffset = Lib.bytesToInt(headers, 8);
 
 	    if (magic != 0x0162) {
 		Lib.debug(dbgCoff, "\tincorrect magic number");
@@ -127,6 +130,90 @@ public class Coff {
 	return entryPoint;
     }
 
+    /**
+     * Return the name of the executable file.
+     *
+     * @return	the name of the executable file.
+     */
+    public String getName() {
+	return file.getName();
+    }
+
+    /**
+     * Return the name of the function containing the specified virtual
+     * address, according to the symbol table the compiler left in the
+     * executable. The symbol table is read by <tt>loadSymbols()</tt> if it
+     * has not been already.
+     *
+     * @param	vaddr	a virtual address in the program's text.
+     * @return	the name of the function, or <tt>null</tt> if it is not known.
+     */
+    public String getFunctionName(int vaddr) {
+	if (functions == null)
+	    loadSymbols();
+
+	Map.Entry<Integer,String> function = functions.floorEntry(vaddr);
+	return (function != null) ? function.getValue() : null;
+    }
+
+    /**
+     * Read the start address and name of every procedure from the MIPS
+     * symbolic header, if this has not been done already. The procedures are
+     * local symbols, found through the file descriptor table. Reading the
+     * file takes time, so this should only be called by the kernel, and
+     * before the loader is closed.
+     */
+    public void loadSymbols() {
+	if (functions != null)
+	    return;
+
+	functions = new TreeMap<Integer,String>();
+
+	if (file == null || sections == null || symbolTableOffset <= 0)
+	    return;
+
+	int length = file.length() - symbolTableOffset;
+	if (length < symbolicHeaderLength)
+	    return;
+
+	byte[] buf = new byte[length];
+	if (file.read(symbolTableOffset, buf, 0, length) != length ||
+	    Lib.bytesToUnsignedShort(buf, 0) != symbolicHeaderMagic) {
+	    Lib.debug(dbgCoff, "\tno symbolic header");
+	    return;
+	}
+
+	// offsets in the symbolic header are from the start of the file
+	int symbolOffset = Lib.bytesToInt(buf, 36) - symbolTableOffset;
+	int stringOffset = Lib.bytesToInt(buf, 60) - symbolTableOffset;
+	int numFiles = Lib.bytesToInt(buf, 72);
+	int fileOffset = Lib.bytesToInt(buf, 76) - symbolTableOffset;
+
+	try {
+	    for (int f=0; f<numFiles; f++) {
+		int fdr = fileOffset + f*fileDescriptorLength;
+		int stringBase = stringOffset + Lib.bytesToInt(buf, fdr+8);
+		int firstSymbol = Lib.bytesToInt(buf, fdr+16);
+		int numSymbols = Lib.bytesToInt(buf, fdr+20);
+
+		for (int i=firstSymbol; i<firstSymbol+numSymbols; i++) {
+		    int sym = symbolOffset + i*symbolLength;
+		    int type = Lib.bytesToInt(buf, sym+8) & 0x3F;
+
+		    if (type == stProc || type == stStaticProc) {
+			int name = stringBase + Lib.bytesToInt(buf, sym);
+			functions.put(Lib.bytesToInt(buf, sym+4),
+				      Lib.bytesToString(buf, name, length-name));
+		    }
+		}
+	    }
+	}
+	catch (IndexOutOfBoundsException e) {
+	    Lib.debug(dbgCoff, "\tbad symbol table");
+	    functions.clear();
+	}
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
@@ -144,8 +231,19 @@ public class Coff {
     /** The sections in this COFF executable. */
     protected CoffSection sections[];
 
+    /** The file offset of the MIPS symbolic header, or 0 if there is none. */
+    private int symbolTableOffset = 0;
+    /** The name of each function, by start address. */
+    private TreeMap<Integer,String> functions = null;
+
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
 
+    private static final int symbolicHeaderMagic = 0x7009;
+    private static final int symbolicHeaderLength = 96;
+    private static final int fileDescriptorLength = 72;
+    private static final int symbolLength = 12;
+    private static final int stProc = 6, stStaticProc = 14;
+
     private static final char dbgCoff = 'c';
 }
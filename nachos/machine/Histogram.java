@@ -0,0 +1,151 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.PrintWriter;
+
+/**
+ * A histogram of non-negative values, with buckets of roughly constant
+ * relative width. Values below 32 each get their own bucket; above that,
+ * every power of two is split into 32 buckets, so any value is known to
+ * within about 3%, however large, and recording a value is a few shifts and
+ * an array increment. Histograms are usually registered by name with
+ * <tt>Metrics</tt>.
+ */
+public final class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public Histogram() {
+    }
+
+    /**
+     * Record one value. Negative values are recorded as 0.
+     *
+     * @param	value	the value to record.
+     */
+    public void record(long value) {
+	if (value < 0)
+	    value = 0;
+
+	counts[bucket(value)]++;
+	count++;
+	sum += value;
+	if (value > max)
+	    max = value;
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return	the number of values recorded.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the sum of the values recorded.
+     *
+     * @return	the sum of the values recorded.
+     */
+    public long getSum() {
+	return sum;
+    }
+
+    /**
+     * Return the largest value recorded.
+     *
+     * @return	the largest value recorded, or 0 if none.
+     */
+    public long getMax() {
+	return max;
+    }
+
+    /**
+     * Return an upper bound on the specified percentile of the values
+     * recorded, accurate to the width of its bucket.
+     *
+     * @param	percentile	the percentile, between 0 and 100.
+     * @return	the highest value in the bucket holding that percentile, or
+     *		0 if no values were recorded.
+     */
+    public long getPercentile(double percentile) {
+	long rank = (long) Math.ceil(count * percentile / 100);
+	if (rank < 1)
+	    rank = 1;
+
+	long seen = 0;
+	for (int i=0; i<counts.length; i++) {
+	    seen += counts[i];
+	    if (seen >= rank)
+		return Math.min(highestValue(i), max);
+	}
+
+	return 0;
+    }
+
+    /**
+     * Return a one-line summary of the values recorded.
+     *
+     * @return	the mean, selected percentiles and maximum.
+     */
+    public String toString() {
+	double mean = (count > 0) ? (double) sum / count : 0;
+
+	return String.format("mean %.1f, p50 %d, p90 %d, p99 %d, max %d",
+			     mean, getPercentile(50), getPercentile(90),
+			     getPercentile(99), max);
+    }
+
+    /**
+     * Write one comma-separated line for each non-empty bucket: the
+     * specified prefix, then the lowest and highest values in the bucket and
+     * the number of values recorded in it.
+     *
+     * @param	out	where to write the buckets.
+     * @param	prefix	the fields to start each line with.
+     */
+    void writeBuckets(PrintWriter out, String prefix) {
+	for (int i=0; i<counts.length; i++) {
+	    if (counts[i] != 0) {
+		out.println(prefix + "," + lowestValue(i) + "," + highestValue(i)
+			    + "," + counts[i]);
+	    }
+	}
+    }
+
+    private static int bucket(long value) {
+	if (value < subBuckets)
+	    return (int) value;
+
+	int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+	return ((shift+1) << subBucketBits) +
+	    (int) ((value >>> shift) - subBuckets);
+    }
+
+    private static long lowestValue(int bucket) {
+	if (bucket < subBuckets)
+	    return bucket;
+
+	int shift = (bucket >> subBucketBits) - 1;
+	return ((long) ((bucket & (subBuckets-1)) + subBuckets)) << shift;
+    }
+
+    private static long highestValue(int bucket) {
+	if (bucket < subBuckets)
+	    return bucket;
+
+	int shift = (bucket >> subBucketBits) - 1;
+	return lowestValue(bucket) + (1L << shift) - 1;
+    }
+
+    private static final int subBucketBits = 5;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    /** The number of values recorded in each bucket. */
+    private long[] counts = new long[64 << subBucketBits];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+}
@@ -4,9 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +57,12 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new InterruptQueue();
+
+	if (Config.getBoolean("Interrupt.histograms", false)) {
+	    histograms = new HashMap<String,Histogram[]>();
+	    histogramFile = Config.getString("Interrupt.histogramFile");
+	}
     }
 
     /**
@@ -124,13 +133,12 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +161,124 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    /**
+     * Advance the simulated time to just before the next pending interrupt
+     * is due, as if the idle thread had spun until then. Call this only when
+     * no thread is ready to run. The idle loop takes one kernel tick each
+     * time it enables interrupts, so this skips every kernel tick before the
+     * one at which the interrupt becomes due, and that tick happens as
+     * usual. Interrupts therefore occur at exactly the same times, without
+     * the host spinning. The skipped ticks are charged to
+     * <tt>Stats.idleTicks</tt>.
+     *
+     * <p>
+     * Nothing is skipped if no interrupt is pending, or while tracing
+     * interrupts, so that every tick is still printed.
+     */
+    public void idle() {
+	if (Lib.test(dbgInt) || pending.isEmpty())
+	    return;
+
+	Stats stats = privilege.stats;
+	long count = (pending.firstTime() - stats.totalTicks - 1)
+	    / Stats.KernelTick;
+	if (count <= 0)
+	    return;
+
+	Lib.debug(dbgInt, "Idling for " + count*Stats.KernelTick + " ticks");
+
+	stats.idleTicks += count * Stats.KernelTick;
+	stats.totalTicks += count * Stats.KernelTick;
+    }
+
+    /**
+     * Return the number of user ticks that can pass before the next pending
+     * interrupt is due. The processor may take these ticks all at once using
+     * <tt>skipUserTicks()</tt>, instead of calling <tt>tick()</tt> after each
+     * instruction. Always 0 while tracing interrupts, so that every tick is
+     * still printed.
+     *
+     * @return	the number of user ticks that will not invoke any interrupt
+     *		handlers.
+     */
+    private long ticksUntilDue() {
+	if (Lib.test(dbgInt))
+	    return 0;
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	long time = privilege.stats.totalTicks;
+	return Math.max((pending.firstTime() - time - 1) / Stats.UserTick, 0);
+    }
+
+    /**
+     * Advance the simulated time by <i>count</i> user ticks at once. This is
+     * the same as calling <tt>tick(false)</tt> <i>count</i> times, provided
+     * no interrupt becomes due in that time.
+     *
+     * @param	count	the number of user ticks to take.
+     */
+    private void skipUserTicks(long count) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += count * Stats.UserTick;
+	stats.totalTicks += count * Stats.UserTick;
+
+	Lib.assertTrue(pending.isEmpty() ||
+		       pending.firstTime() > stats.totalTicks);
+    }
+
+    /**
+     * Return the time of each pending interrupt, in the order they will
+     * occur. Used to save a <tt>Snapshot</tt>.
+     *
+     * @return	the times of the pending interrupts.
+     */
+    long[] pendingTimes() {
+	return pending.times();
+    }
+
+    /**
+     * Return the type of each pending interrupt, in the order they will
+     * occur. Used to save a <tt>Snapshot</tt>.
+     *
+     * @return	the types of the pending interrupts.
+     */
+    String[] pendingTypes() {
+	return pending.types();
+    }
+
+    /**
+     * Move the pending interrupts to the times saved in a <tt>Snapshot</tt>.
+     * Each saved interrupt is matched with a pending interrupt of the same
+     * type, and the pending interrupts are renumbered in the saved order, so
+     * that interrupts due at the same time still occur in the same order.
+     *
+     * @param	times	the saved times, in the order they will occur.
+     * @param	types	the saved types, in the same order.
+     */
+    void restorePending(long[] times, String[] types) {
+	Lib.assertTrue(times.length == pending.size(),
+		       "snapshot has a different number of pending interrupts");
+
+	ArrayList<String> unmatchedTypes = new ArrayList<String>();
+	ArrayList<Runnable> unmatchedHandlers = new ArrayList<Runnable>();
+	for (String type : pending.types())
+	    unmatchedTypes.add(type);
+	for (Runnable handler : pending.handlers())
+	    unmatchedHandlers.add(handler);
+	pending.clear();
+
+	for (int i=0; i<times.length; i++) {
+	    int j = unmatchedTypes.indexOf(types[i]);
+	    Lib.assertTrue(j != -1,
+			   "no pending " + types[i] + " interrupt to restore");
+
+	    unmatchedTypes.remove(j);
+	    pending.add(times[i], types[i], unmatchedHandlers.remove(j));
+	}
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -164,80 +290,165 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    long due = pending.firstTime();
+	    String type = pending.firstType();
+	    Runnable handler = pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    if (histograms == null)
+		handler.run();
+	    else
+		runMeasured(type, due, handler);
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
-    private void print() {
-	System.out.println("Time: " + privilege.stats.totalTicks
-			   + ", interrupts " + (enabled ? "on" : "off"));
-	System.out.println("Pending interrupts:");
-
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+    /**
+     * Run an interrupt handler, and record in the histograms for its type
+     * how late it was, and how long it took in simulated ticks and in host
+     * nanoseconds. A handler that switches to another thread, like the
+     * timer's, is charged until its thread runs again.
+     *
+     * @param	type	the name of the interrupt.
+     * @param	due	the time the interrupt was due.
+     * @param	handler	the interrupt handler.
+     */
+    private void runMeasured(String type, long due, Runnable handler) {
+	long start = privilege.stats.totalTicks;
+	long startNanos = System.nanoTime();
+
+	handler.run();
+
+	long nanos = System.nanoTime() - startNanos;
+
+	Histogram[] histogram = histograms.get(type);
+	if (histogram == null) {
+	    histogram = new Histogram[histogramKeys.length];
+	    for (int i=0; i<histogram.length; i++) {
+		histogram[i] = Machine.metrics().histogram(
+		    "machine.interrupt." + type.replace(' ', '_') + "."
+		    + histogramKeys[i]);
+	    }
+	    histograms.put(type, histogram);
 	}
 
-	System.out.println("  (end of list)");
+	histogram[latency].record(start - due);
+	histogram[handlerTicks].record(privilege.stats.totalTicks - start);
+	histogram[handlerNanos].record(nanos);
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Print the latency and handler-time histograms of each type of
+     * interrupt, most host time first, and write every bucket to
+     * <tt>Interrupt.histogramFile</tt> if it is set. Does nothing unless
+     * <tt>Interrupt.histograms</tt> is set.
+     */
+    void printHistograms() {
+	if (histograms == null)
+	    return;
+
+	ArrayList<String> types = new ArrayList<String>(histograms.keySet());
+	Collections.sort(types, new Comparator<String>() {
+		public int compare(String type1, String type2) {
+		    return Long.compare(
+			histograms.get(type2)[handlerNanos].getSum(),
+			histograms.get(type1)[handlerNanos].getSum());
+		}
+	    });
+
+	System.out.println("Interrupt handlers:");
+	for (String type : types) {
+	    Histogram[] histogram = histograms.get(type);
+
+	    System.out.println("  " + type + ": "
+			       + histogram[latency].getCount()
+			       + " interrupts, "
+			       + histogram[handlerNanos].getSum() / 1000
+			       + " us in handlers");
+	    for (int i=0; i<histogram.length; i++) {
+		System.out.println("    " + histogramNames[i] + ": "
+				   + histogram[i]);
+	    }
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	if (histogramFile != null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { writeHistograms(histogramFile); }
+		});
+	}
+    }
+
+    private void writeHistograms(String fileName) {
+	try {
+	    PrintWriter out = new PrintWriter(new FileWriter(fileName));
+	    try {
+		out.println("type,histogram,low,high,count");
+		for (String type : histograms.keySet()) {
+		    Histogram[] histogram = histograms.get(type);
+		    for (int i=0; i<histogram.length; i++) {
+			histogram[i].writeBuckets(out, type + ","
+						  + histogramKeys[i]);
+		    }
+		}
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("could not write histograms: " + e);
 	}
+    }
+
+    private void print() {
+	System.out.println("Time: " + privilege.stats.totalTicks
+			   + ", interrupts " + (enabled ? "on" : "off"));
+	System.out.println("Pending interrupts:");
 
-	long time;
-	String type;
-	Runnable handler;
+	long[] times = pending.times();
+	String[] types = pending.types();
+	for (int i=0; i<times.length; i++) {
+	    System.out.println("  " + types[i] +
+			       ", scheduled at " + times[i]);
+	}
 
-	private long id;
+	System.out.println("  (end of list)");
     }
-    
-    private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /** The pending interrupts, in the order they will occur. */
+    private InterruptQueue pending;
+
+    /**
+     * The histograms of each type of interrupt, or <tt>null</tt> if they are
+     * not kept.
+     */
+    private HashMap<String,Histogram[]> histograms = null;
+    /** The host file the histograms are written to, or <tt>null</tt>. */
+    private String histogramFile = null;
+
+    private static final int latency = 0;
+    private static final int handlerTicks = 1;
+    private static final int handlerNanos = 2;
+    private static final String[] histogramNames = {
+	"latency (ticks)", "handler (ticks)", "handler (ns)"
+    };
+    private static final String[] histogramKeys = {
+	"latencyTicks", "handlerTicks", "handlerNanos"
+    };
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +460,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long ticksUntilDue() {
+	    return Interrupt.this.ticksUntilDue();
+	}
+
+	public void skipUserTicks(long count) {
+	    Interrupt.this.skipUserTicks(count);
+	}
     }
 }
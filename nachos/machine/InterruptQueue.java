@@ -0,0 +1,386 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * The queue of pending interrupts, ordered by the time each is due and then
+ * by the order they were scheduled. The queue is a binary heap of slot
+ * numbers; the time, sequence number, type and handler of each interrupt are
+ * kept in parallel arrays indexed by slot, and the slots of interrupts that
+ * have occurred are reused, so adding and removing interrupts does not
+ * allocate anything once the arrays are big enough.
+ *
+ * <p>
+ * <tt>main()</tt> compares this queue against the <tt>TreeSet</tt> it
+ * replaced:
+ *
+ * <pre>
+ * java nachos.machine.InterruptQueue [pending interrupts] [operations]
+ * </pre>
+ */
+final class InterruptQueue {
+    /**
+     * Allocate a new, empty queue.
+     */
+    InterruptQueue() {
+	grow(initialCapacity);
+    }
+
+    /**
+     * Test whether any interrupts are pending.
+     *
+     * @return	<tt>true</tt> if the queue is empty.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the number of pending interrupts.
+     *
+     * @return	the size of the queue.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Add an interrupt to the queue. It will occur after any interrupt
+     * already in the queue that is due at the same time.
+     *
+     * @param	time	the time the interrupt is due.
+     * @param	type	the name of the interrupt.
+     * @param	handler	the interrupt handler.
+     */
+    void add(long time, String type, Runnable handler) {
+	if (size == heap.length)
+	    grow(heap.length * 2);
+
+	int slot = free[numSlots - size - 1];
+
+	times[slot] = time;
+	ids[slot] = numAdded++;
+	types[slot] = type;
+	handlers[slot] = handler;
+
+	heap[size++] = slot;
+	siftUp(size-1);
+    }
+
+    /**
+     * Return the time the first interrupt is due. The queue must not be
+     * empty.
+     *
+     * @return	the time of the first interrupt.
+     */
+    long firstTime() {
+	Lib.assertTrue(size > 0);
+	return times[heap[0]];
+    }
+
+    /**
+     * Return the name of the first interrupt. The queue must not be empty.
+     *
+     * @return	the type of the first interrupt.
+     */
+    String firstType() {
+	Lib.assertTrue(size > 0);
+	return types[heap[0]];
+    }
+
+    /**
+     * Remove the first interrupt from the queue and return its handler.
+     *
+     * @return	the handler of the interrupt removed.
+     */
+    Runnable removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	int slot = heap[0];
+	Runnable handler = handlers[slot];
+
+	types[slot] = null;
+	handlers[slot] = null;
+	free[numSlots - size] = slot;
+
+	heap[0] = heap[--size];
+	if (size > 0)
+	    siftDown(0);
+
+	return handler;
+    }
+
+    /**
+     * Return the time of each pending interrupt, in the order they will
+     * occur.
+     *
+     * @return	the times of the pending interrupts.
+     */
+    long[] times() {
+	int[] order = order();
+	long[] result = new long[size];
+	for (int i=0; i<size; i++)
+	    result[i] = times[order[i]];
+
+	return result;
+    }
+
+    /**
+     * Return the name of each pending interrupt, in the order they will
+     * occur.
+     *
+     * @return	the types of the pending interrupts.
+     */
+    String[] types() {
+	int[] order = order();
+	String[] result = new String[size];
+	for (int i=0; i<size; i++)
+	    result[i] = types[order[i]];
+
+	return result;
+    }
+
+    /**
+     * Return the handler of each pending interrupt, in the order they will
+     * occur.
+     *
+     * @return	the handlers of the pending interrupts.
+     */
+    Runnable[] handlers() {
+	int[] order = order();
+	Runnable[] result = new Runnable[size];
+	for (int i=0; i<size; i++)
+	    result[i] = handlers[order[i]];
+
+	return result;
+    }
+
+    /**
+     * Remove every pending interrupt.
+     */
+    void clear() {
+	while (size > 0)
+	    removeFirst();
+    }
+
+    /**
+     * Return the slots of the pending interrupts, in the order they will
+     * occur, without changing the queue.
+     */
+    private int[] order() {
+	int[] saved = new int[size];
+	System.arraycopy(heap, 0, saved, 0, size);
+	int savedSize = size;
+
+	// popping every slot sorts them; the slots are then put back as they
+	// were, so nothing else needs to change
+	int[] result = new int[size];
+	for (int i=0; i<savedSize; i++) {
+	    result[i] = heap[0];
+	    heap[0] = heap[--size];
+	    if (size > 0)
+		siftDown(0);
+	}
+
+	System.arraycopy(saved, 0, heap, 0, savedSize);
+	size = savedSize;
+
+	return result;
+    }
+
+    private boolean before(int slot1, int slot2) {
+	return times[slot1] < times[slot2] ||
+	    (times[slot1] == times[slot2] && ids[slot1] < ids[slot2]);
+    }
+
+    private void siftUp(int i) {
+	int slot = heap[i];
+
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!before(slot, heap[parent]))
+		break;
+
+	    heap[i] = heap[parent];
+	    i = parent;
+	}
+
+	heap[i] = slot;
+    }
+
+    private void siftDown(int i) {
+	int slot = heap[i];
+
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= size)
+		break;
+	    if (child+1 < size && before(heap[child+1], heap[child]))
+		child++;
+	    if (!before(heap[child], slot))
+		break;
+
+	    heap[i] = heap[child];
+	    i = child;
+	}
+
+	heap[i] = slot;
+    }
+
+    private void grow(int capacity) {
+	Lib.assertTrue(capacity > numSlots);
+
+	int[] newHeap = new int[capacity];
+	long[] newTimes = new long[capacity];
+	long[] newIds = new long[capacity];
+	String[] newTypes = new String[capacity];
+	Runnable[] newHandlers = new Runnable[capacity];
+	int[] newFree = new int[capacity];
+
+	System.arraycopy(heap, 0, newHeap, 0, size);
+	System.arraycopy(times, 0, newTimes, 0, numSlots);
+	System.arraycopy(ids, 0, newIds, 0, numSlots);
+	System.arraycopy(types, 0, newTypes, 0, numSlots);
+	System.arraycopy(handlers, 0, newHandlers, 0, numSlots);
+
+	// the new slots are free, and are used lowest first
+	int numFree = 0;
+	for (int slot=capacity-1; slot>=numSlots; slot--)
+	    newFree[numFree++] = slot;
+	System.arraycopy(free, 0, newFree, numFree, numSlots - size);
+
+	heap = newHeap;
+	times = newTimes;
+	ids = newIds;
+	types = newTypes;
+	handlers = newHandlers;
+	free = newFree;
+	numSlots = capacity;
+    }
+
+    /**
+     * Compare this queue with a <tt>TreeSet</tt> of interrupt objects. Each
+     * queue starts with the specified number of pending interrupts, and then
+     * repeatedly removes the first one and schedules another a random time
+     * later, as devices do. The order the interrupts occur in must be the
+     * same for both.
+     *
+     * @param	args	the number of pending interrupts (default 1000) and
+     *			the number of interrupts to remove (default 10000000).
+     */
+    public static void main(String[] args) {
+	int numPending = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+	int numOps = (args.length > 1) ? Integer.parseInt(args[1]) : 10000000;
+
+	System.out.println(numPending + " pending, " + numOps + " interrupts");
+
+	for (int round=0; round<3; round++) {
+	    long start = System.nanoTime();
+	    long treeSum = runTree(numPending, numOps);
+	    long treeTime = System.nanoTime() - start;
+
+	    start = System.nanoTime();
+	    long heapSum = runHeap(numPending, numOps);
+	    long heapTime = System.nanoTime() - start;
+
+	    Lib.assertTrue(treeSum == heapSum,
+			   "the queues fired interrupts in different orders");
+
+	    System.out.println("TreeSet " + treeTime/1000000 + " ms, heap "
+			       + heapTime/1000000 + " ms");
+	}
+    }
+
+    private static long runHeap(int numPending, int numOps) {
+	Random random = new Random(0);
+	InterruptQueue queue = new InterruptQueue();
+	Runnable handler = new Runnable() { public void run() {} };
+
+	for (int i=0; i<numPending; i++)
+	    queue.add(random.nextInt(benchSpread), "bench", handler);
+
+	long sum = 0;
+	for (int i=0; i<numOps; i++) {
+	    long time = queue.firstTime();
+	    long id = queue.ids[queue.heap[0]];
+	    queue.removeFirst();
+	    sum = sum*31 + time*7 + id;
+
+	    queue.add(time + 1 + random.nextInt(benchSpread), "bench", handler);
+	}
+
+	return sum;
+    }
+
+    private static long runTree(int numPending, int numOps) {
+	Random random = new Random(0);
+	TreeSet<TreeEntry> queue = new TreeSet<TreeEntry>();
+	Runnable handler = new Runnable() { public void run() {} };
+	long numCreated = 0;
+
+	for (int i=0; i<numPending; i++) {
+	    queue.add(new TreeEntry(random.nextInt(benchSpread), numCreated++,
+				    "bench", handler));
+	}
+
+	long sum = 0;
+	for (int i=0; i<numOps; i++) {
+	    TreeEntry next = queue.first();
+	    queue.remove(next);
+	    sum = sum*31 + next.time*7 + next.id;
+
+	    queue.add(new TreeEntry(next.time + 1 + random.nextInt(benchSpread),
+				    numCreated++, "bench", handler));
+	}
+
+	return sum;
+    }
+
+    /** An interrupt in the <tt>TreeSet</tt> queue this class replaced. */
+    private static class TreeEntry implements Comparable<TreeEntry> {
+	TreeEntry(long time, long id, String type, Runnable handler) {
+	    this.time = time;
+	    this.id = id;
+	    this.type = type;
+	    this.handler = handler;
+	}
+
+	public int compareTo(TreeEntry toOccur) {
+	    if (time < toOccur.time)
+		return -1;
+	    else if (time > toOccur.time)
+		return 1;
+	    else if (id < toOccur.id)
+		return -1;
+	    else if (id > toOccur.id)
+		return 1;
+	    else
+		return 0;
+	}
+
+	long time, id;
+	String type;
+	Runnable handler;
+    }
+
+    /** The slots of the pending interrupts, as a binary heap. */
+    private int[] heap = new int[0];
+    private int size = 0;
+    /** The time each slot's interrupt is due. */
+    private long[] times = new long[0];
+    /** The order each slot's interrupt was added in, to break ties. */
+    private long[] ids = new long[0];
+    private String[] types = new String[0];
+    private Runnable[] handlers = new Runnable[0];
+    /** A stack of the slots not in use, top at the highest index. */
+    private int[] free = new int[0];
+    private int numSlots = 0;
+    private long numAdded = 0;
+
+    private static final int initialCapacity = 16;
+    /** The range of times the benchmark schedules interrupts over. */
+    private static final int benchSpread = 1000;
+}
@@ -44,6 +44,19 @@ public final class Lib {
 	random = new Random(randomSeed);
     }
     
+    /**
+     * Reseed the random number generator that has already been seeded, so
+     * that from here on it produces the same numbers as any other generator
+     * reseeded with the same seed. Used to save and restore a
+     * <tt>Snapshot</tt>.
+     *
+     * @param	randomSeed	the new seed.
+     */
+    static void reseedRandom(long randomSeed) {
+	assertTrue(random != null);
+	random.setSeed(randomSeed);
+    }
+
     /**
      * Return a random integer between 0 and <i>range - 1</i>. Must not be
      * called before <tt>seedRandom()</tt> seeds the random number generator.
@@ -88,15 +88,35 @@ public final class Machine {
 	    throw (ThreadDeath) e;
 	
 	e.printStackTrace();
+	if (processor != null)
+	    processor.dumpTrace();
 	terminate();
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, and terminate Nachos. The stats are also written to
+     * <tt>Machine.statsFile</tt> as CSV, if it is set, and the metrics to
+     * <tt>Metrics.file</tt>.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	final String statsFile = Config.getString("Machine.statsFile");
+	if (statsFile != null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { stats.writeCSV(statsFile); }
+		});
+	}
+
+	interrupt.printHistograms();
+	metrics.export();
+
+	if (processor != null) {
+	    processor.printProfile();
+	    processor.printStateHash();
+	    processor.dumpTrace();
+	}
 	terminate();
     }
 
@@ -168,6 +188,7 @@ public final class Machine {
 
     private static void createDevices() {
 	interrupt = new Interrupt(privilege);
+	metrics = new Metrics(privilege);
 	timer = new Timer(privilege);
 
 	if (Config.getBoolean("Machine.bank"))
@@ -288,6 +309,39 @@ public final class Machine {
 			new Class[] { clsElevatorControls }, void.class);
     }
 
+    /**
+     * Save a snapshot of the machine to a host file, so that a later run can
+     * continue from this point. Must be called from the kernel, not while a
+     * user instruction is executing.
+     *
+     * <p>
+     * Saving reseeds <tt>Lib.random()</tt> with a seed written to the
+     * snapshot, so this run and every run restored from the snapshot draw
+     * the same random numbers from here on.
+     *
+     * @param	fileName	the host file to write.
+     * @param	pageTable	the current page table, or <tt>null</tt>.
+     *
+     * @see	nachos.machine.Snapshot
+     */
+    public static void saveSnapshot(String fileName,
+				    TranslationEntry[] pageTable) {
+	Snapshot.save(privilege, fileName, pageTable);
+    }
+
+    /**
+     * Read a snapshot saved by <tt>saveSnapshot()</tt>. The machine is not
+     * changed until the snapshot is restored.
+     *
+     * @param	fileName	the host file to read.
+     * @return	the snapshot.
+     *
+     * @see	nachos.machine.Snapshot#restore
+     */
+    public static Snapshot loadSnapshot(String fileName) {
+	return new Snapshot(privilege, fileName);
+    }
+
     /**
      * Prevent instantiation.
      */
@@ -301,6 +355,13 @@ public final class Machine {
      */
     public static Interrupt interrupt() { return interrupt; }
     
+    /**
+     * Return the registry of metrics.
+     *
+     * @return	the registry of metrics.
+     */
+    public static Metrics metrics() { return metrics; }
+    
     /**
      * Return the hardware timer.
      *
@@ -352,6 +413,7 @@ public final class Machine {
     public static AutoGrader autoGrader() { return autoGrader; }
 
     private static Interrupt interrupt = null;
+    private static Metrics metrics = null;
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
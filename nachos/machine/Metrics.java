@@ -0,0 +1,283 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A registry of named metrics: counters, gauges and histograms. Machine
+ * devices and kernel subsystems register their metrics by name, starting with
+ * the name of the subsystem (<tt>machine.</tt>, <tt>threads.</tt>,
+ * <tt>userprog.</tt>, <tt>network.</tt>, ...). Every statistic in
+ * <tt>Stats</tt> is registered as a gauge under <tt>machine.</tt>.
+ *
+ * <p>
+ * If <tt>Metrics.file</tt> is set, the final value of every metric is written
+ * there when the machine halts, as JSON if the name ends in <tt>.json</tt>,
+ * and as CSV otherwise. If <tt>Metrics.interval</tt> is also set, the values
+ * recorded every that many ticks are written first.
+ */
+public final class Metrics {
+    /**
+     * Allocate a new registry, and register the statistics in
+     * <tt>Stats</tt>.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    Metrics(Privilege privilege) {
+	this.privilege = privilege;
+
+	privilege.stats.registerMetrics(this);
+
+	interval = Config.getInteger("Metrics.interval", 0);
+	fileName = Config.getString("Metrics.file");
+
+	if (fileName != null && interval > 0)
+	    scheduleSnapshot();
+    }
+
+    /**
+     * Return the counter with the specified name, registering a new one if
+     * there is none.
+     *
+     * @param	name	the name of the counter.
+     * @return	the counter.
+     */
+    public Counter counter(String name) {
+	Object metric = metrics.get(name);
+	if (metric == null) {
+	    metric = new Counter();
+	    metrics.put(name, metric);
+	}
+
+	Lib.assertTrue(metric instanceof Counter, name + " is not a counter");
+	return (Counter) metric;
+    }
+
+    /**
+     * Return the histogram with the specified name, registering a new one if
+     * there is none.
+     *
+     * @param	name	the name of the histogram.
+     * @return	the histogram.
+     */
+    public Histogram histogram(String name) {
+	Object metric = metrics.get(name);
+	if (metric == null) {
+	    metric = new Histogram();
+	    metrics.put(name, metric);
+	}
+
+	Lib.assertTrue(metric instanceof Histogram,
+		       name + " is not a histogram");
+	return (Histogram) metric;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge already registered with the same
+     * name.
+     *
+     * @param	name	the name of the gauge.
+     * @param	gauge	the gauge.
+     */
+    public void gauge(String name, Gauge gauge) {
+	Object metric = metrics.get(name);
+	Lib.assertTrue(metric == null || metric instanceof Gauge,
+		       name + " is not a gauge");
+
+	metrics.put(name, gauge);
+    }
+
+    /**
+     * Return the current value of every metric, by name. A histogram is
+     * reported as its count, mean, 50th and 99th percentiles and maximum,
+     * under its name followed by <tt>.count</tt>, <tt>.mean</tt>,
+     * <tt>.p50</tt>, <tt>.p99</tt> and <tt>.max</tt>.
+     *
+     * @return	the value of every metric, sorted by name.
+     */
+    public TreeMap<String,Long> values() {
+	TreeMap<String,Long> values = new TreeMap<String,Long>();
+
+	for (Map.Entry<String,Object> entry : metrics.entrySet()) {
+	    String name = entry.getKey();
+	    Object metric = entry.getValue();
+
+	    if (metric instanceof Counter) {
+		values.put(name, ((Counter) metric).get());
+	    }
+	    else if (metric instanceof Gauge) {
+		values.put(name, ((Gauge) metric).value());
+	    }
+	    else {
+		Histogram histogram = (Histogram) metric;
+		long count = histogram.getCount();
+		values.put(name + ".count", count);
+		values.put(name + ".mean",
+			   (count > 0) ? histogram.getSum() / count : 0);
+		values.put(name + ".p50", histogram.getPercentile(50));
+		values.put(name + ".p99", histogram.getPercentile(99));
+		values.put(name + ".max", histogram.getMax());
+	    }
+	}
+
+	return values;
+    }
+
+    /**
+     * Write the recorded and final values of every metric to
+     * <tt>Metrics.file</tt>, if it is set. Called when the machine halts.
+     */
+    void export() {
+	if (fileName == null)
+	    return;
+
+	snapshotTimes.add(privilege.stats.totalTicks);
+	snapshotValues.add(values());
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { write(); }
+	    });
+    }
+
+    private void scheduleSnapshot() {
+	privilege.interrupt.schedule(interval, "metrics", new Runnable() {
+		public void run() { snapshot(); }
+	    });
+    }
+
+    private void snapshot() {
+	snapshotTimes.add(privilege.stats.totalTicks);
+	snapshotValues.add(values());
+
+	scheduleSnapshot();
+    }
+
+    private void write() {
+	try {
+	    PrintWriter out = new PrintWriter(new FileWriter(fileName));
+	    try {
+		if (fileName.endsWith(".json"))
+		    writeJSON(out);
+		else
+		    writeCSV(out);
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("could not write metrics: " + e);
+	}
+    }
+
+    private void writeCSV(PrintWriter out) {
+	out.println("time,metric,value");
+
+	for (int i=0; i<snapshotTimes.size(); i++) {
+	    long time = snapshotTimes.get(i);
+	    for (Map.Entry<String,Long> value :
+		     snapshotValues.get(i).entrySet()) {
+		out.println(time + "," + value.getKey() + ","
+			    + value.getValue());
+	    }
+	}
+    }
+
+    private void writeJSON(PrintWriter out) {
+	out.println("{\"snapshots\": [");
+
+	for (int i=0; i<snapshotTimes.size(); i++) {
+	    out.print("  {\"time\": " + snapshotTimes.get(i)
+		      + ", \"metrics\": {");
+
+	    String separator = "";
+	    for (Map.Entry<String,Long> value :
+		     snapshotValues.get(i).entrySet()) {
+		out.print(separator + "\n    " + quote(value.getKey()) + ": "
+			  + value.getValue());
+		separator = ",";
+	    }
+
+	    out.println("}}" + (i+1 < snapshotTimes.size() ? "," : ""));
+	}
+
+	out.println("]}");
+    }
+
+    private static String quote(String s) {
+	return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * A metric whose value is read when it is needed, such as the size of a
+     * queue.
+     */
+    public interface Gauge {
+	/**
+	 * Return the current value of this gauge.
+	 *
+	 * @return	the current value.
+	 */
+	public long value();
+    }
+
+    /**
+     * A count of events.
+     */
+    public static final class Counter {
+	private Counter() {
+	}
+
+	/**
+	 * Count one event.
+	 */
+	public void increment() {
+	    value++;
+	}
+
+	/**
+	 * Count several events.
+	 *
+	 * @param	count	the number of events.
+	 */
+	public void add(long count) {
+	    value += count;
+	}
+
+	/**
+	 * Return the number of events counted.
+	 *
+	 * @return	the value of this counter.
+	 */
+	public long get() {
+	    return value;
+	}
+
+	private long value = 0;
+    }
+
+    private Privilege privilege;
+
+    /**
+     * Every metric, by name: a <tt>Counter</tt>, <tt>Gauge</tt> or
+     * <tt>Histogram</tt>.
+     */
+    private TreeMap<String,Object> metrics = new TreeMap<String,Object>();
+
+    /** The number of ticks between snapshots, or 0 for none. */
+    private int interval;
+    /** The host file the metrics are written to, or <tt>null</tt>. */
+    private String fileName;
+    private ArrayList<Long> snapshotTimes = new ArrayList<Long>();
+    private ArrayList<TreeMap<String,Long>> snapshotValues =
+	new ArrayList<TreeMap<String,Long>>();
+}
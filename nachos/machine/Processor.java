@@ -4,6 +4,23 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,7 +62,44 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE / pageSize,
+		       "too many physical pages: " + numPhysPages);
+
+	String memory = Config.getString("Processor.memory", "heap");
+	if (memory.equals("heap")) {
+	    mainMemory = ByteBuffer.wrap(new byte[pageSize * numPhysPages]);
+	}
+	else if (memory.equals("direct")) {
+	    mainMemory = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+	}
+	else if (memory.equals("mapped")) {
+	    final String fileName = Config.getString("Processor.memoryFile", "");
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { mapMemory(fileName); }
+		});
+	}
+	else {
+	    Lib.assertNotReached("unknown Processor.memory: " + memory);
+	}
+	decodedPages = new Instruction[numPhysPages][];
+
+	genericDispatch = Config.getBoolean("Processor.genericDispatch", false);
+	hashingState = Config.getBoolean("Processor.hashState", false);
+	batchingTicks = Config.getBoolean("Processor.batchTicks", false);
+
+	if (Config.getBoolean("Processor.trace", false)) {
+	    tracer = new Tracer(Config.getInteger("Processor.traceLength",
+						  65536));
+	    traceFile = Config.getString("Processor.traceFile", "nachos.trace");
+	}
+
+	if (Config.getBoolean("Processor.countInstructions", false))
+	    instructionCounts = privilege.stats.numInstructions;
+
+	if (Config.getBoolean("Processor.profile", false)) {
+	    profiler = new Profiler(numPhysPages,
+		Config.getInteger("Processor.profileInterval", 1000));
+	}
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -91,18 +145,136 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
-	Instruction inst = new Instruction();
-	
-	while (true) {
-	    try {
-		inst.run();
-	    }
-	    catch (MipsException e) {
-		e.handle();
-	    }
+	while (true)
+	    step();
+    }
+
+    /**
+     * Execute the instruction at the current PC, and advance time by one
+     * user tick.
+     */
+    private void step() {
+	try {
+	    Instruction inst = fetch();
+
+	    if (tracer != null)
+		record(inst);
+
+	    runInstruction(inst);
+	}
+	catch (MipsException e) {
+	    if (hashingState)
+		hashMemory();
 
-	    privilege.interrupt.tick(false);
+	    e.handle();
+	}
+
+	tick();
+
+	if (hashingState)
+	    hashRegisters();
+    }
+
+    /**
+     * Execute the specified instruction, and count it in
+     * <tt>Stats.numInstructions</tt> if <tt>Processor.countInstructions</tt>
+     * is set. Only instructions that complete are counted, so one that
+     * faults is counted once when it is restarted; a syscall always ends in
+     * an exception, so it is counted before it runs. A conditional branch is
+     * counted as taken if its condition held, even if its target is the
+     * instruction after its delay slot.
+     *
+     * @param	inst	the instruction at the current PC.
+     */
+    private void runInstruction(Instruction inst) throws MipsException {
+	if (instructionCounts == null) {
+	    inst.run();
+	    return;
 	}
+
+	int kind = inst.instructionClass;
+
+	if (kind == Stats.InstSyscall)
+	    instructionCounts[kind]++;
+
+	inst.run();
+
+	if (kind == Stats.InstBranchTaken && !inst.branch)
+	    kind = Stats.InstBranchNotTaken;
+
+	instructionCounts[kind]++;
+    }
+
+    /**
+     * Advance time by one user tick, after executing an instruction.
+     *
+     * <p>
+     * If <tt>Processor.batchTicks</tt> is set, ticks that cannot make an
+     * interrupt due are only counted here, and are charged to <tt>Stats</tt>
+     * all at once before the next real tick or exception. The kernel only runs
+     * during those, so it never sees the difference, and interrupts still
+     * happen at exactly the same times. Anything the kernel does, such as
+     * scheduling an interrupt or changing the interrupt status, is followed
+     * by a real tick, which recomputes how many ticks can be batched.
+     *
+     * <p>
+     * If <tt>Processor.profile</tt> is set, the PC is also sampled here
+     * every <tt>Processor.profileInterval</tt> user ticks.
+     */
+    private void tick() {
+	if (batchedTicks < tickBudget) {
+	    batchedTicks++;
+	    return;
+	}
+
+	flushTicks();
+
+	if (profiler != null)
+	    sample();
+
+	privilege.interrupt.tick(false);
+
+	if (batchingTicks) {
+	    tickBudget = privilege.interrupt.ticksUntilDue();
+
+	    // stop batching in time for the next sample
+	    if (profiler != null)
+		tickBudget = Math.min(tickBudget, ticksUntilSample());
+	}
+    }
+
+    /**
+     * Sample the PC, if this tick is due for a sample.
+     */
+    private void sample() {
+	if (privilege.stats.userTicks + Stats.UserTick < nextSample)
+	    return;
+
+	int pc = registers[regPC];
+	profiler.sample(peekPPN(pc), pc);
+	nextSample = privilege.stats.userTicks + Stats.UserTick
+	    + profiler.getInterval();
+    }
+
+    /**
+     * Return the number of ticks that can be batched without skipping a
+     * sample.
+     */
+    private long ticksUntilSample() {
+	return Math.max((nextSample - privilege.stats.userTicks - 1)
+			/ Stats.UserTick, 0);
+    }
+
+    /**
+     * Charge any batched ticks to <tt>Stats</tt>, and stop batching until the
+     * next real tick.
+     */
+    private void flushTicks() {
+	if (batchedTicks > 0)
+	    privilege.interrupt.skipUserTicks(batchedTicks);
+
+	batchedTicks = 0;
+	tickBudget = 0;
     }
 
     /**
@@ -175,6 +347,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	invalidateTranslationCache();
     }
 
     /**
@@ -216,6 +389,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	invalidateTranslationCache();
     }
 
     /**
@@ -230,12 +404,82 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. There is only such an array
+     * if <tt>Processor.memory</tt> is <tt>heap</tt>; use
+     * <tt>readMemory()</tt> and <tt>writeMemory()</tt> to work with any
+     * backing store.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
-	return mainMemory;
+	Lib.assertTrue(mainMemory.hasArray(),
+		       "main memory is not backed by an array");
+	return mainMemory.array();
+    }
+
+    /**
+     * Copy <i>length</i> bytes of physical memory, starting at
+     * <i>paddr</i>, into the specified array.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	ByteBuffer buf = mainMemory.duplicate();
+	buf.position(paddr);
+	buf.get(data, offset, length);
+    }
+
+    /**
+     * Copy <i>length</i> bytes from the specified array into physical memory,
+     * starting at <i>paddr</i>.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	ByteBuffer buf = mainMemory.duplicate();
+	buf.position(paddr);
+	buf.put(data, offset, length);
+    }
+
+    /**
+     * Back main memory with a file mapped into the host's address space, so
+     * that the host only allocates the pages that are actually used.
+     *
+     * @param	fileName	the file to map, or the empty string to use a
+     *				temporary file that is deleted on exit.
+     */
+    private void mapMemory(String fileName) {
+	try {
+	    File file;
+	    if (fileName.length() > 0) {
+		file = new File(fileName);
+	    }
+	    else {
+		file = File.createTempFile("nachos", ".mem");
+		file.deleteOnExit();
+	    }
+
+	    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	    try {
+		// start from zeroed memory, like the other backing stores
+		raf.setLength(0);
+		raf.setLength((long) pageSize * numPhysPages);
+		mainMemory = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						  0, (long) pageSize*numPhysPages);
+	    }
+	    finally {
+		raf.close();
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not map main memory: " + e);
+	}
     }
 
     /**
@@ -275,6 +519,15 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Forget all cached translations. Called whenever the page table or TLB
+     * is replaced.
+     */
+    private void invalidateTranslationCache() {
+	for (int i=0; i<translationCacheSize; i++)
+	    cachedEntries[i] = null;
+    }
+
     private void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
@@ -301,53 +554,69 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw signal(exceptionAddressError, vaddr);
 	}
 
 	// calculate virtual page number and offset from the virtual address
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
-	TranslationEntry entry = null;
+	// a cached translation can be used as long as the same entry would be
+	// found, it is still valid, and it still maps to the same ppn
+	int slot = vpn % translationCacheSize;
+	TranslationEntry entry = cachedEntries[slot];
+	boolean cached = (entry != null && cachedVPNs[slot] == vpn &&
+			  entry.valid && entry.ppn == cachedPPNs[slot] &&
+			  (usingTLB || translations[vpn] == entry));
+
+	if (!cached) {
+	    // if not using a TLB, then the vpn is an index into the table
+	    if (!usingTLB) {
+		if (translations == null || vpn >= translations.length ||
+		    translations[vpn] == null ||
+		    !translations[vpn].valid) {
+		    privilege.stats.numPageFaults++;
+		    Lib.debug(dbgProcessor, "\t\tpage fault");
+		    throw signal(exceptionPageFault, vaddr);
+		}
 
-	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
-	    if (translations == null || vpn >= translations.length ||
-		translations[vpn] == null ||
-		!translations[vpn].valid) {
-		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		entry = translations[vpn];
 	    }
-
-	    entry = translations[vpn];
-	}
-	// else, look through all TLB entries for matching vpn
-	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
+	    // else, look through all TLB entries for matching vpn
+	    else {
+		entry = null;
+		for (int i=0; i<tlbSize; i++) {
+		    if (translations[i].valid && translations[i].vpn == vpn) {
+			entry = translations[i];
+			break;
+		    }
+		}
+		if (entry == null) {
+		    privilege.stats.numTLBMisses++;
+		    Lib.debug(dbgProcessor, "\t\tTLB miss");
+		    throw signal(exceptionTLBMiss, vaddr);
 		}
-	    }
-	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw signal(exceptionReadOnly, vaddr);
 	}
 
-	// check if physical page number is out of range
 	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
-	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+
+	if (!cached) {
+	    // check if physical page number is out of range
+	    if (ppn < 0 || ppn >= numPhysPages) {
+		Lib.debug(dbgProcessor, "\t\tbad ppn");
+		throw signal(exceptionBusError, vaddr);
+	    }
+
+	    cachedEntries[slot] = entry;
+	    cachedVPNs[slot] = vpn;
+	    cachedPPNs[slot] = ppn;
 	}
 
 	// set used and dirty bits as appropriate
@@ -378,8 +647,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = readPhys(translate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -405,9 +673,442 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	int paddr = translate(vaddr, size, true);
+
+	writePhys(paddr, size, value);
+
+	invalidateDecodedPage(paddr / pageSize);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory at the aligned
+     * address <i>paddr</i>. Halfwords and words are read in a single access
+     * through a little-endian view of main memory, and are sign extended like
+     * <tt>Lib.bytesToInt()</tt>.
+     *
+     * @param	paddr	the physical address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return		the value read.
+     */
+    private int readPhys(int paddr, int size) {
+	switch (size) {
+	case 1:
+	    return mainMemory.get(paddr);
+	case 2:
+	    return (short) halfView.get(mainMemory, paddr);
+	default:
+	    return (int) wordView.get(mainMemory, paddr);
+	}
+    }
+
+    /**
+     * Write <i>size</i> (1, 2, or 4) bytes of physical memory at the aligned
+     * address <i>paddr</i>.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store.
+     */
+    private void writePhys(int paddr, int size, int value) {
+	switch (size) {
+	case 1:
+	    mainMemory.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    halfView.set(mainMemory, paddr, (short) value);
+	    break;
+	default:
+	    wordView.set(mainMemory, paddr, value);
+	    break;
+	}
+    }
+
+    /**
+     * Fetch and decode the instruction at the current PC. Decoded instructions
+     * are cached per physical page, so an instruction that has already been
+     * decoded only costs a translation and a word read. A cached entry is only
+     * used if it was decoded from the word currently in memory, which keeps
+     * the cache correct even if the kernel writes to physical memory directly
+     * through <tt>writeMemory()</tt> or <tt>getMemory()</tt>.
+     *
+     * <p>
+     * The cache is bypassed while disassembling or tracing the processor, so
+     * that debug output is the same as without the cache.
+     *
+     * @return		the decoded instruction at the current PC.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private Instruction fetch() throws MipsException {
+	if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+	    Lib.test(dbgFullDisassemble)) {
+	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		Lib.test(dbgFullDisassemble))
+		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+				 + "\t");
+
+	    return new Instruction(readMem(registers[regPC], 4));
+	}
+
+	return decodedInstruction(translate(registers[regPC], 4, false));
+    }
+
+    /**
+     * Return the decoded instruction at the specified physical address,
+     * decoding it and adding it to the cache if necessary.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return		the decoded instruction.
+     */
+    private Instruction decodedInstruction(int paddr) {
+	int value = readPhys(paddr, 4);
+
+	Instruction[] page = decodedPages[paddr / pageSize];
+	if (page == null) {
+	    page = new Instruction[pageSize / 4];
+	    decodedPages[paddr / pageSize] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	Instruction inst = page[index];
+	if (inst == null || inst.value != value) {
+	    inst = new Instruction(value);
+	    page[index] = inst;
+	}
+
+	return inst;
+    }
+
+    /**
+     * Discard any decoded instructions cached for the specified physical
+     * page. Called whenever the contents of the page are changed by the
+     * processor.
+     *
+     * @param	ppn	the physical page number.
+     */
+    void invalidateDecodedPage(int ppn) {
+	decodedPages[ppn] = null;
+    }
+
+    /**
+     * Called by the COFF loader after it loads a page of an executable into
+     * physical memory.
+     *
+     * @param	ppn	the physical page number.
+     * @param	coff	the executable the page belongs to.
+     */
+    void pageLoaded(int ppn, Coff coff) {
+	invalidateDecodedPage(ppn);
+
+	if (profiler != null)
+	    profiler.pageLoaded(ppn, coff);
+    }
+
+    /**
+     * Record the instruction about to be executed at the current PC in the
+     * trace buffer.
+     *
+     * @param	inst	the instruction.
+     */
+    private void record(Instruction inst) {
+	int addr = inst.referencesMemory ? registers[inst.rs] + inst.imm : 0;
+
+	tracer.record(registers[regPC], inst.value, addr,
+		      privilege.stats.totalTicks + batchedTicks*Stats.UserTick);
+    }
+
+    /**
+     * Write the trace buffer to <tt>Processor.traceFile</tt>, if
+     * <tt>Processor.trace</tt> is set. Called when the machine halts or
+     * terminates abnormally, and on any exception that is not a syscall,
+     * page fault or TLB miss.
+     */
+    void dumpTrace() {
+	if (tracer != null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { tracer.dump(traceFile); }
+		});
+	}
+    }
+
+    /**
+     * Disassemble the specified instruction word, in the same format as
+     * <tt>-d m</tt> but without register contents.
+     *
+     * @param	pc	the virtual address of the instruction.
+     * @param	value	the instruction word.
+     * @return	the disassembled instruction.
+     */
+    static String disassemble(int pc, int value) {
+	Mips info = Mips.lookup(value);
+	if (info.operation == Mips.INVALID)
+	    return "invalid";
+
+	int rs = Lib.extract(value, 21, 5);
+	int rt = Lib.extract(value, 16, 5);
+	int rd = Lib.extract(value, 11, 5);
+	int sh = Lib.extract(value, 6, 5);
+	int imm = Lib.extend(value, 0, 16);
+	if ((info.flags & Mips.UNSIGNED) != 0)
+	    imm &= 0xFFFF;
+
+	int spaceIndex = info.name.indexOf(' ');
+	StringBuffer result = new StringBuffer(info.name.substring(0, spaceIndex));
+	char[] args = info.name.substring(spaceIndex+1).toCharArray();
+
+	for (int i=0; i<args.length; i++) {
+	    result.append((i == 0) ? "\t" : ", ");
+
+	    switch (args[i]) {
+	    case Mips.RS:
+		result.append("$" + rs);
+		break;
+	    case Mips.RT:
+		result.append("$" + rt);
+		break;
+	    case Mips.RETURNADDRESS:
+		if (rd != 31)
+		    result.append("$" + rd);
+		break;
+	    case Mips.RD:
+		result.append("$" + rd);
+		break;
+	    case Mips.IMM:
+		result.append(imm);
+		break;
+	    case Mips.SHIFTAMOUNT:
+		result.append(sh);
+		break;
+	    case Mips.ADDR:
+		result.append(imm + "($" + rs + ")");
+		break;
+	    case Mips.TARGET:
+		if (info.format == Mips.RFMT)
+		    result.append("$" + rs);
+		else if (info.format == Mips.IFMT)
+		    result.append("0x" + Lib.toHexString(pc + 4 + (imm<<2)));
+		else
+		    result.append("0x" + Lib.toHexString(((pc + 4) & 0xF0000000)
+							  | (Lib.extract(value, 0, 26)<<2)));
+		break;
+	    }
+	}
+
+	return result.toString();
+    }
+
+    /**
+     * Test whether the specified instruction word is a load or store.
+     *
+     * @param	value	the instruction word.
+     * @return	<tt>true</tt> if the instruction references memory.
+     */
+    static boolean referencesMemory(int value) {
+	return Mips.lookup(value).referencesMemory();
+    }
+
+    /**
+     * Print the hot function report, if <tt>Processor.profile</tt> is set.
+     */
+    void printProfile() {
+	if (profiler != null)
+	    profiler.print();
+    }
+
+    /**
+     * Print the hash of the processor's state, if
+     * <tt>Processor.hashState</tt> is set. Called when the machine halts.
+     */
+    void printStateHash() {
+	if (hashingState) {
+	    hashMemory();
+	    System.out.println("state hash: " + Long.toHexString(stateHash));
+	}
+    }
+
+    /**
+     * Fold the registers and the pending delayed load into the state hash.
+     * Called after every instruction while <tt>Processor.hashState</tt> is
+     * set.
+     */
+    private void hashRegisters() {
+	long hash = stateHash;
+
+	for (int i=0; i<numUserRegisters; i++)
+	    hash = hash*31 + registers[i];
+
+	hash = hash*31 + loadTarget;
+	hash = hash*31 + (loadValue & loadMask);
+
+	stateHash = hash;
+    }
+
+    /**
+     * Fold all of main memory into the state hash. Called before every
+     * exception is handled, since that is when the kernel looks at memory,
+     * and when the machine halts.
+     */
+    private void hashMemory() {
+	long hash = stateHash;
+
+	for (int paddr=0; paddr<numPhysPages*pageSize; paddr+=4)
+	    hash = hash*31 + readPhys(paddr, 4);
+
+	stateHash = hash;
+    }
+
+    /**
+     * Check that the specialized handlers behave exactly as the generic path
+     * does. Each program is run twice, in a Nachos of its own configured by
+     * <tt>nachos.conf</tt> in the current directory, with
+     * <tt>Processor.hashState</tt> set, and with
+     * <tt>Processor.genericDispatch</tt> false and then true. The two runs
+     * must print the same output, including the hash of the registers after
+     * every instruction and of memory at every exception. Run it from a
+     * project directory:
+     *
+     * <pre>
+     * java nachos.machine.Processor [program.coff ...]
+     * </pre>
+     *
+     * @param	args	the programs to run, by default every <tt>.coff</tt>
+     *			file in <tt>../test</tt>.
+     */
+    public static void main(String[] args)
+	throws IOException, InterruptedException {
+	String[] programs = args;
+	if (programs.length == 0) {
+	    String[] files = new File("../test").list();
+	    Lib.assertTrue(files != null, "no ../test directory");
+
+	    int numPrograms = 0;
+	    for (int i=0; i<files.length; i++) {
+		if (files[i].endsWith(".coff"))
+		    files[numPrograms++] = files[i];
+	    }
+
+	    programs = Arrays.copyOf(files, numPrograms);
+	    Arrays.sort(programs);
+	}
+
+	File specializedConf = writeDispatchConf(false);
+	File genericConf = writeDispatchConf(true);
+
+	int failures = 0;
+	for (int i=0; i<programs.length; i++) {
+	    String specialized = runNachos(specializedConf, programs[i]);
+	    String generic = runNachos(genericConf, programs[i]);
+
+	    String result;
+	    if (specialized == null || generic == null) {
+		result = "timed out";
+		failures++;
+	    }
+	    else if (!specialized.equals(generic)) {
+		result = "DIFFERENT";
+		failures++;
+	    }
+	    else {
+		int hash = specialized.lastIndexOf("state hash: ");
+		result = (hash < 0) ? "same, did not halt" :
+		    "same, " + specialized.substring(hash).trim();
+	    }
+
+	    System.out.println(String.format("%-16s %s", programs[i], result));
+	}
+
+	System.out.println(failures == 0 ? "all the same" :
+			   failures + " of " + programs.length + " differ");
+	System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Write a copy of <tt>nachos.conf</tt> that hashes the processor's state
+     * and uses the specified dispatcher.
+     */
+    private static File writeDispatchConf(boolean generic)
+	throws IOException {
+	File conf = File.createTempFile("dispatch", ".conf");
+	conf.deleteOnExit();
+
+	BufferedReader in = new BufferedReader(new FileReader("nachos.conf"));
+	PrintWriter out = new PrintWriter(new FileWriter(conf));
+
+	String line;
+	while ((line = in.readLine()) != null) {
+	    if (!line.trim().startsWith("Processor.genericDispatch") &&
+		!line.trim().startsWith("Processor.hashState"))
+		out.println(line);
+	}
+	out.println("Processor.genericDispatch = " + generic);
+	out.println("Processor.hashState = true");
+
+	in.close();
+	out.close();
+
+	return conf;
+    }
+
+    /**
+     * Run a program in a new Nachos and return everything it printed, or
+     * <tt>null</tt> if it did not finish within <tt>dispatchTimeout</tt>
+     * seconds. The console reads <tt>q</tt>, which ends the console self
+     * test, and then <tt>exit</tt>, which ends a shell.
+     */
+    private static String runNachos(File conf, String program)
+	throws IOException, InterruptedException {
+	File output = File.createTempFile("dispatch", ".out");
+	output.deleteOnExit();
+
+	ProcessBuilder builder = new ProcessBuilder(
+	    new File(System.getProperty("java.home"), "bin/java").getPath(),
+	    "-cp", System.getProperty("java.class.path"),
+	    "nachos.machine.Machine", "-[]", conf.getPath(), "-x", program);
+	builder.redirectErrorStream(true);
+	builder.redirectOutput(output);
+
+	Process process = builder.start();
+	OutputStream console = process.getOutputStream();
+	console.write("q\nexit\n".getBytes());
+	console.close();
+
+	if (!process.waitFor(dispatchTimeout, TimeUnit.SECONDS)) {
+	    process.destroyForcibly();
+	    return null;
+	}
+
+	return new String(Files.readAllBytes(output.toPath()));
+    }
+
+    /**
+     * Return the physical page the specified virtual address currently maps
+     * to, without raising an exception or touching the used and dirty bits.
+     *
+     * @param	vaddr	the virtual address.
+     * @return	the physical page number, or -1 if <i>vaddr</i> is not mapped.
+     */
+    private int peekPPN(int vaddr) {
+	int vpn = pageFromAddress(vaddr);
+	TranslationEntry entry = null;
+
+	if (!usingTLB) {
+	    if (translations != null && vpn < translations.length)
+		entry = translations[vpn];
+	}
+	else {
+	    for (int i=0; i<tlbSize; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn) {
+		    entry = translations[i];
+		    break;
+		}
+	    }
+	}
+
+	if (entry == null || !entry.valid ||
+	    entry.ppn < 0 || entry.ppn >= numPhysPages)
+	    return -1;
+
+	return entry.ppn;
     }
 
     /**
@@ -547,18 +1248,90 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /** Number of entries in the translation cache. */
+    private static final int translationCacheSize = 16;
+    /**
+     * The translation cache, a small direct-mapped cache of recently used
+     * translation entries, indexed by vpn. Each slot holds the entry, the
+     * vpn it was found for, and the ppn it mapped to at the time.
+     */
+    private TranslationEntry[] cachedEntries =
+	new TranslationEntry[translationCacheSize];
+    private int[] cachedVPNs = new int[translationCacheSize];
+    private int[] cachedPPNs = new int[translationCacheSize];
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /**
+     * Main memory for user programs, on the heap, off the heap, or mapped
+     * from a file, according to <tt>Processor.memory</tt>.
+     */
+    private ByteBuffer mainMemory;
+    /** Little-endian word access to <tt>mainMemory</tt>. */
+    private static final VarHandle wordView =
+	MethodHandles.byteBufferViewVarHandle(int[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    /** Little-endian halfword access to <tt>mainMemory</tt>. */
+    private static final VarHandle halfView =
+	MethodHandles.byteBufferViewVarHandle(short[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * within the page. A page's entry is <tt>null</tt> until an instruction
+     * is fetched from it.
+     */
+    private Instruction[][] decodedPages;
+
+    /**
+     * <tt>true</tt> if every instruction is executed by the generic
+     * flag-driven path, instead of by its specialized handler.
+     */
+    private boolean genericDispatch;
+    /**
+     * <tt>true</tt> if the state of the processor is hashed as it runs
+     * (<tt>Processor.hashState</tt>). See <tt>main()</tt>.
+     */
+    private boolean hashingState;
+    /** The hash of the processor's state so far. */
+    private long stateHash = 0;
+    /** The seconds each program may run for in <tt>main()</tt>. */
+    private static final int dispatchTimeout = 120;
+    /** <tt>true</tt> if ticks are batched (<tt>Processor.batchTicks</tt>). */
+    private boolean batchingTicks;
+    /** The number of ticks that may be batched before the next real tick. */
+    private long tickBudget = 0;
+    /** The number of ticks batched but not yet charged to <tt>Stats</tt>. */
+    private long batchedTicks = 0;
+    /** The trace recorder, or <tt>null</tt> if not tracing. */
+    private Tracer tracer = null;
+    /** The host file the trace is written to. */
+    private String traceFile;
+    /**
+     * <tt>Stats.numInstructions</tt>, or <tt>null</tt> if instructions are
+     * not counted.
+     */
+    private long[] instructionCounts = null;
+    /** The PC sampler, or <tt>null</tt> if not profiling. */
+    private Profiler profiler = null;
+    /** The value of <tt>Stats.userTicks</tt> at which to take a sample. */
+    private long nextSample = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** The exception thrown for every CPU exception. */
+    private MipsException signalled = new MipsException();
+    /** The cause of the last CPU exception signalled. */
+    private int signalledCause;
+    /** <tt>true</tt> if the last CPU exception has a bad virtual address. */
+    private boolean signalledHasBadVAddr;
+    /** The bad virtual address of the last CPU exception signalled. */
+    private int signalledBadVAddr;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
@@ -569,21 +1342,57 @@ public final class Processor {
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * Record a CPU exception and return the exception to throw for it. The
+     * same <tt>MipsException</tt> is thrown every time; the cause and bad
+     * virtual address are kept in the processor until <tt>handle()</tt> is
+     * called, so signalling an exception does not allocate anything.
+     *
+     * @param	cause	the cause of the exception.
+     * @return		the exception to throw.
+     */
+    private MipsException signal(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	    this.cause = cause;
-	}
+	signalledCause = cause;
+	signalledHasBadVAddr = false;
+	return signalled;
+    }
+
+    /**
+     * Record a CPU exception caused by an access to <i>badVAddr</i>, and
+     * return the exception to throw for it.
+     *
+     * @param	cause	the cause of the exception.
+     * @param	badVAddr	the virtual address that caused it.
+     * @return		the exception to throw.
+     */
+    private MipsException signal(int cause, int badVAddr) {
+	signal(cause);
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	signalledHasBadVAddr = true;
+	signalledBadVAddr = badVAddr;
+	return signalled;
+    }
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+    /**
+     * The exception thrown to unwind to <tt>run()</tt> when an instruction
+     * causes a CPU exception. It carries no stack trace, and its cause is
+     * whatever was last passed to <tt>signal()</tt>.
+     */
+    private class MipsException extends Exception {
+	MipsException() {
+	    super(null, null, false, false);
 	}
 
 	public void handle() {
+	    // the kernel may signal another exception before this one returns
+	    int cause = signalledCause;
+	    boolean hasBadVAddr = signalledHasBadVAddr;
+	    int badVAddr = signalledBadVAddr;
+
+	    flushTicks();
+
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -592,6 +1401,10 @@ public final class Processor {
 	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
 		System.out.println("exception: " + exceptionNames[cause]);
 
+	    if (tracer != null && cause != exceptionSyscall &&
+		cause != exceptionPageFault && cause != exceptionTLBMiss)
+		dumpTrace();
+
 	    finishLoad();
 
 	    Lib.assertTrue(exceptionHandler != null);
@@ -602,33 +1415,357 @@ public final class Processor {
 	    
 	    exceptionHandler.run();
 	}
-
-	private boolean hasBadVAddr = false;
-	private int cause, badVAddr;
     }	
 
     private class Instruction {
-	public void run() throws MipsException {
-	    // hopefully this looks familiar to 152 students?
-	    fetch();
+	/**
+	 * Decode the specified instruction word.
+	 *
+	 * @param	value	the instruction word.
+	 */
+	Instruction(int value) {
+	    this.value = value;
 	    decode();
-	    execute();
-	    writeBack();
-	}	
+	}
 
-	private boolean test(int flag) {
-	    return Lib.test(flag, flags);
+	/**
+	 * Execute this instruction. Normally this dispatches straight to the
+	 * handler for this particular instruction, which reads only the
+	 * operands it needs. The generic flag-driven path is used instead when
+	 * disassembling, since it produces the debug output, or when
+	 * <tt>Processor.genericDispatch</tt> is set, so that the two can be
+	 * compared.
+	 */
+	public void run() throws MipsException {
+	    if (genericDispatch || Lib.test(dbgDisassemble) ||
+		Lib.test(dbgFullDisassemble)) {
+		// hopefully this looks familiar to 152 students?
+		readOperands();
+		execute();
+		writeBack();
+		return;
+	    }
+
+	    int addr, value, preserved, mask;
+	    long dst;
+
+	    switch (handler) {
+	    case Mips.opAdd:
+		dst = (long) registers[rs] + registers[rt];
+		checkOverflow(dst);
+		retire(rd, (int) dst);
+		break;
+	    case Mips.opAddu:
+		retire(rd, registers[rs] + registers[rt]);
+		break;
+	    case Mips.opAddi:
+		dst = (long) registers[rs] + imm;
+		checkOverflow(dst);
+		retire(rt, (int) dst);
+		break;
+	    case Mips.opAddiu:
+		retire(rt, registers[rs] + imm);
+		break;
+	    case Mips.opSub:
+		dst = (long) registers[rs] - registers[rt];
+		checkOverflow(dst);
+		retire(rd, (int) dst);
+		break;
+	    case Mips.opSubu:
+		retire(rd, registers[rs] - registers[rt]);
+		break;
+
+	    case Mips.opSlt:
+		retire(rd, (registers[rs] < registers[rt]) ? 1 : 0);
+		break;
+	    case Mips.opSltu:
+		retire(rd, ((registers[rs]&0xFFFFFFFFL) <
+			    (registers[rt]&0xFFFFFFFFL)) ? 1 : 0);
+		break;
+	    case Mips.opSlti:
+		retire(rt, (registers[rs] < imm) ? 1 : 0);
+		break;
+	    case Mips.opSltiu:
+		// imm was zero-extended when decoded
+		retire(rt, ((registers[rs]&0xFFFFFFFFL) < imm) ? 1 : 0);
+		break;
+
+	    case Mips.opAnd:
+		retire(rd, registers[rs] & registers[rt]);
+		break;
+	    case Mips.opOr:
+		retire(rd, registers[rs] | registers[rt]);
+		break;
+	    case Mips.opXor:
+		retire(rd, registers[rs] ^ registers[rt]);
+		break;
+	    case Mips.opNor:
+		retire(rd, ~(registers[rs] | registers[rt]));
+		break;
+	    case Mips.opAndi:
+		retire(rt, registers[rs] & imm);
+		break;
+	    case Mips.opOri:
+		retire(rt, registers[rs] | imm);
+		break;
+	    case Mips.opXori:
+		retire(rt, registers[rs] ^ imm);
+		break;
+	    case Mips.opLui:
+		retire(rt, imm << 16);
+		break;
+
+	    // right shifts are done on the sign-extended register, like execute()
+	    case Mips.opSll:
+		retire(rd, registers[rt] << (sh&0x1F));
+		break;
+	    case Mips.opSrl:
+		retire(rd, (int) ((long) registers[rt] >>> (sh&0x1F)));
+		break;
+	    case Mips.opSra:
+		retire(rd, registers[rt] >> (sh&0x1F));
+		break;
+	    case Mips.opSllv:
+		retire(rd, registers[rt] << (registers[rs]&0x1F));
+		break;
+	    case Mips.opSrlv:
+		retire(rd, (int) ((long) registers[rt] >>> (registers[rs]&0x1F)));
+		break;
+	    case Mips.opSrav:
+		retire(rd, registers[rt] >> (registers[rs]&0x1F));
+		break;
+
+	    case Mips.opMult:
+		multiply((long) registers[rs] * registers[rt]);
+		break;
+	    case Mips.opMultu:
+		multiply((registers[rs]&0xFFFFFFFFL) * (registers[rt]&0xFFFFFFFFL));
+		break;
+	    case Mips.opDiv:
+		divide(registers[rs], registers[rt]);
+		break;
+	    case Mips.opDivu:
+		divide(registers[rs]&0xFFFFFFFFL, registers[rt]&0xFFFFFFFFL);
+		break;
+	    case Mips.opMfhi:
+		retire(rd, registers[regHi]);
+		break;
+	    case Mips.opMflo:
+		retire(rd, registers[regLo]);
+		break;
+	    case Mips.opMthi:
+		registers[regHi] = registers[rs];
+		retire();
+		break;
+	    case Mips.opMtlo:
+		registers[regLo] = registers[rs];
+		retire();
+		break;
+
+	    case Mips.opJ:
+		jump(0, (registers[regNextPC]&0xF0000000) | (target<<2));
+		break;
+	    case Mips.opJal:
+		jump(regRA, (registers[regNextPC]&0xF0000000) | (target<<2));
+		break;
+	    case Mips.opJr:
+		jump(0, registers[rs]);
+		break;
+	    case Mips.opJalr:
+		jump(rd, registers[rs]);
+		break;
+	    case Mips.opBeq:
+		branch(0, registers[rs] == registers[rt]);
+		break;
+	    case Mips.opBne:
+		branch(0, registers[rs] != registers[rt]);
+		break;
+	    case Mips.opBlez:
+		branch(0, registers[rs] <= 0);
+		break;
+	    case Mips.opBgtz:
+		branch(0, registers[rs] > 0);
+		break;
+	    case Mips.opBltz:
+		branch(0, registers[rs] < 0);
+		break;
+	    case Mips.opBgez:
+		branch(0, registers[rs] >= 0);
+		break;
+	    case Mips.opBltzal:
+		branch(regRA, registers[rs] < 0);
+		break;
+	    case Mips.opBgezal:
+		branch(regRA, registers[rs] >= 0);
+		break;
+
+	    case Mips.opLb:
+		load(Lib.extend(readMem(registers[rs] + imm, 1), 0, 8), -1);
+		break;
+	    case Mips.opLh:
+		load(Lib.extend(readMem(registers[rs] + imm, 2), 0, 16), -1);
+		break;
+	    case Mips.opLw:
+		load(readMem(registers[rs] + imm, 4), -1);
+		break;
+	    case Mips.opLbu:
+		load(readMem(registers[rs] + imm, 1), -1);
+		break;
+	    case Mips.opLhu:
+		load(readMem(registers[rs] + imm, 2), -1);
+		break;
+	    case Mips.opLwl:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (3-(addr&0x3))*8;
+		load(value << preserved, -1 << preserved);
+		break;
+	    case Mips.opLwr:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (addr&0x3)*8;
+		load(value >>> preserved, -1 >>> preserved);
+		break;
+
+	    case Mips.opSb:
+		writeMem(registers[rs] + imm, 1, registers[rt]);
+		retire();
+		break;
+	    case Mips.opSh:
+		writeMem(registers[rs] + imm, 2, registers[rt]);
+		retire();
+		break;
+	    case Mips.opSw:
+		writeMem(registers[rs] + imm, 4, registers[rt]);
+		retire();
+		break;
+	    case Mips.opSwl:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (3-(addr&0x3))*8;
+		mask = -1 >>> preserved;
+		dst = (long) registers[rt] >>> preserved;
+		dst = (dst & mask) | (value & ~mask);
+		writeMem(addr&~0x3, 4, (int) dst);
+		retire();
+		break;
+	    case Mips.opSwr:
+		addr = registers[rs] + imm;
+		value = readMem(addr&~0x3, 4);
+		preserved = (addr&0x3)*8;
+		mask = -1 << preserved;
+		dst = (long) registers[rt] << preserved;
+		dst = (dst & mask) | (value & ~mask);
+		writeMem(addr&~0x3, 4, (int) dst);
+		retire();
+		break;
+
+	    case Mips.opSyscall:
+		throw signal(exceptionSyscall);
+
+	    case Mips.opUnimpl:
+		System.err.println("Warning: encountered unimplemented inst");
+		throw signal(exceptionIllegalInstruction);
+
+	    case Mips.opInvalid:
+		throw signal(exceptionIllegalInstruction);
+
+	    default:
+		Lib.assertNotReached();
+	    }
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
-		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-				 + "\t");
+	/**
+	 * Throw an overflow exception if the sum or difference <i>dst</i>
+	 * overflows, using the same test as <tt>writeBack()</tt>.
+	 */
+	private void checkOverflow(long dst) throws MipsException {
+	    if (Lib.test(dst,31) != Lib.test(dst,32))
+		throw signal(exceptionOverflow);
+	}
 
-	    value = readMem(registers[regPC], 4);
+	/**
+	 * Finish an instruction that only moves on to the next one.
+	 */
+	private void retire() {
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
 	}
-	
+
+	/**
+	 * Finish an instruction that writes <i>value</i> to register
+	 * <i>reg</i>.
+	 */
+	private void retire(int reg, int value) {
+	    finishLoad();
+	    if (reg != 0)
+		registers[reg] = value;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Finish a load by scheduling a delayed load into <tt>rt</tt>.
+	 */
+	private void load(int value, int mask) {
+	    delayedLoad(rt, value, mask);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Finish a jump to <i>jtarget</i>, linking into register <i>link</i>
+	 * unless it is 0.
+	 */
+	private void jump(int link, int jtarget) {
+	    int nextPC = registers[regNextPC]+4;
+
+	    finishLoad();
+	    if (link != 0)
+		registers[link] = nextPC;
+	    advancePC(jtarget);
+	}
+
+	/**
+	 * Finish a conditional branch, linking into register <i>link</i>
+	 * unless it is 0.
+	 */
+	private void branch(int link, boolean taken) {
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget = registers[regNextPC] + branchOffset;
+
+	    branch = taken;
+
+	    finishLoad();
+	    if (link != 0)
+		registers[link] = nextPC;
+	    advancePC(taken ? jtarget : nextPC);
+	}
+
+	private void multiply(long dst) {
+	    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+	    retire();
+	}
+
+	private void divide(long src1, long src2) throws MipsException {
+	    if (src2 == 0)
+		throw signal(exceptionOverflow);
+
+	    registers[regLo] = (int) (src1 / src2);
+	    registers[regHi] = (int) (src1 % src2);
+	    if (registers[regLo]*src2 + registers[regHi] != src1)
+		throw signal(exceptionOverflow);
+
+	    retire();
+	}
+
+	private boolean test(int flag) {
+	    return Lib.test(flag, flags);
+	}
+
+	/**
+	 * Decode the fields of this instruction that depend only on the
+	 * instruction word, and not on the state of the processor.
+	 */
 	private void decode() {
 	    op = Lib.extract(value, 26, 6);
 	    rs = Lib.extract(value, 21, 5);
@@ -639,27 +1776,15 @@ public final class Processor {
 	    target = Lib.extract(value, 0, 26);
 	    imm = Lib.extend(value, 0, 16);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    Mips info = Mips.lookup(value);
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
+	    handler = info.handler;
+	    referencesMemory = info.referencesMemory();
 
-	    mask = 0xFFFFFFFF;	
-	    branch = true;
-	
 	    // get memory access size
 	    if (test(Mips.SIZEB))
 		size = 1;
@@ -670,9 +1795,6 @@ public final class Processor {
 	    else
 		size = 0;
 
-	    // get nextPC
-	    nextPC = registers[regNextPC]+4;
-
 	    // get dstReg
 	    if (test(Mips.DSTRA))
 		dstReg = regRA;
@@ -683,21 +1805,71 @@ public final class Processor {
 	    else
 		dstReg = -1;
 
+	    // the branch offset uses the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get instructionClass
+	    switch (operation) {
+	    case Mips.LOAD:
+	    case Mips.LWL:
+	    case Mips.LWR:
+		instructionClass = Stats.InstLoad;
+		break;
+	    case Mips.STORE:
+	    case Mips.SWL:
+	    case Mips.SWR:
+		instructionClass = Stats.InstStore;
+		break;
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		instructionClass = Stats.InstBranchTaken;
+		break;
+	    case Mips.JUMP:
+		instructionClass = Stats.InstJump;
+		break;
+	    case Mips.MULT:
+	    case Mips.DIV:
+		instructionClass = Stats.InstMultDiv;
+		break;
+	    case Mips.SYSCALL:
+		instructionClass = Stats.InstSyscall;
+		break;
+	    default:
+		instructionClass = Stats.InstOther;
+		break;
+	    }
+
+	    // get imm
+	    if (test(Mips.UNSIGNED)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	/**
+	 * Compute the fields of this instruction that depend on the current
+	 * contents of the registers.
+	 */
+	private void readOperands() {
+	    mask = 0xFFFFFFFF;
+	    branch = true;
+
+	    // get nextPC
+	    nextPC = registers[regNextPC]+4;
+
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -869,7 +2041,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw signal(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +2111,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw signal(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +2181,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw signal(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +2191,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw signal(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1051,13 +2223,18 @@ public final class Processor {
 		System.out.print("\n");
 	}
     
-	// state used to execute a single instruction
+	// state decoded from the instruction word
 	int value, op, rs, rt, rd, sh, func, target, imm;
-	int operation, format, flags;
+	int operation, format, flags, handler;
 	String name;
 
-	int size;
-	int addr, nextPC, jtarget, dstReg;
+	int size, dstReg, branchOffset;
+	boolean referencesMemory;
+	/** The <tt>Stats.Inst<i>*</i></tt> class this instruction counts in. */
+	int instructionClass;
+
+	// state used to execute a single instruction
+	int addr, nextPC, jtarget;
 	long src1, src2, dst;
 	int mask;	
 	boolean branch;
@@ -1070,18 +2247,53 @@ public final class Processor {
 	Mips(int operation, String name) {
 	    this.operation = operation;
 	    this.name = name;
+	    this.handler = (operation == SYSCALL) ? opSyscall : opUnimpl;
 	}
 	    
-	Mips(int operation, String name, int format, int flags) {
+	Mips(int operation, String name, int format, int flags, int handler) {
 	    this(operation, name);
 	    this.format = format;
 	    this.flags = flags;
+	    this.handler = handler;
+	}
+
+	/**
+	 * Return the table entry describing the specified instruction word.
+	 *
+	 * @param	value	the instruction word.
+	 * @return	the entry for its opcode and, if needed, its function or
+	 *		reg-imm field.
+	 */
+	static Mips lookup(int value) {
+	    int op = Lib.extract(value, 26, 6);
+
+	    switch (op) {
+	    case 0:
+		return specialtable[Lib.extract(value, 0, 6)];
+	    case 1:
+		return regimmtable[Lib.extract(value, 16, 5)];
+	    default:
+		return optable[op];
+	    }
+	}
+
+	/**
+	 * Test whether this instruction is a load or store. The unaligned
+	 * loads and stores have no size flag, but reference memory too.
+	 *
+	 * @return	<tt>true</tt> if the instruction references memory.
+	 */
+	boolean referencesMemory() {
+	    return (flags & (SIZEB | SIZEH | SIZEW)) != 0 ||
+		operation == LWL || operation == LWR ||
+		operation == SWL || operation == SWR;
 	}
 
 	int operation = INVALID;
 	String name = "invalid ";
 	int format;
 	int flags;
+	int handler = opInvalid;
 
 	// operation types
 	static final int
@@ -1120,6 +2332,68 @@ public final class Processor {
 	    SWR		= 40,
 	    MAX		= 40;
 
+	// specialized handlers, one for each distinct instruction
+	static final int
+	    opInvalid	= 0,
+	    opUnimpl	= 1,
+	    opSyscall	= 2,
+	    opAdd	= 3,
+	    opAddu	= 4,
+	    opAddi	= 5,
+	    opAddiu	= 6,
+	    opSub	= 7,
+	    opSubu	= 8,
+	    opSlt	= 9,
+	    opSltu	= 10,
+	    opSlti	= 11,
+	    opSltiu	= 12,
+	    opAnd	= 13,
+	    opOr		= 14,
+	    opXor	= 15,
+	    opNor	= 16,
+	    opAndi	= 17,
+	    opOri	= 18,
+	    opXori	= 19,
+	    opLui	= 20,
+	    opSll	= 21,
+	    opSrl	= 22,
+	    opSra	= 23,
+	    opSllv	= 24,
+	    opSrlv	= 25,
+	    opSrav	= 26,
+	    opMult	= 27,
+	    opMultu	= 28,
+	    opDiv	= 29,
+	    opDivu	= 30,
+	    opMfhi	= 31,
+	    opMthi	= 32,
+	    opMflo	= 33,
+	    opMtlo	= 34,
+	    opJ		= 35,
+	    opJal	= 36,
+	    opJr		= 37,
+	    opJalr	= 38,
+	    opBeq	= 39,
+	    opBne	= 40,
+	    opBlez	= 41,
+	    opBgtz	= 42,
+	    opBltz	= 43,
+	    opBgez	= 44,
+	    opBltzal	= 45,
+	    opBgezal	= 46,
+	    opLb		= 47,
+	    opLh		= 48,
+	    opLw		= 49,
+	    opLbu	= 50,
+	    opLhu	= 51,
+	    opLwl	= 52,
+	    opLwr	= 53,
+	    opSb		= 54,
+	    opSh		= 55,
+	    opSw		= 56,
+	    opSwl	= 57,
+	    opSwr	= 58;
+
 	static final int
 	    IFMT = 1,
 	    JFMT = 2,
@@ -1152,28 +2426,28 @@ public final class Processor {
 	static final Mips[] optable = {
 	    new Mips(),						// special
 	    new Mips(),						// reg-imm
-	    new Mips(JUMP,	"j j",		JFMT, BRANCH),
-	    new Mips(JUMP,	"jal j",	JFMT, BRANCH|LINK|DST|DSTRA),
-	    new Mips(BEQ,	"beq stj",	IFMT, BRANCH),
-	    new Mips(BNE,	"bne stj",	IFMT, BRANCH),
-	    new Mips(BLEZ,	"blez sj",	IFMT, BRANCH),
-	    new Mips(BGTZ,	"bgtz sj",	IFMT, BRANCH),
-	    new Mips(ADD,	"addi tsi",	IFMT, DST|SRC2IMM|OVERFLOW),
-	    new Mips(ADD,	"addiu tsi",	IFMT, DST|SRC2IMM),
-	    new Mips(SLT,	"slti tsi",	IFMT, DST|SRC2IMM),
-	    new Mips(SLT,	"sltiu tsi",	IFMT, DST|SRC2IMM|UNSIGNED),
-	    new Mips(AND,	"andi tsi",	IFMT, DST|SRC2IMM|UNSIGNED),
-	    new Mips(OR,	"ori tsi",	IFMT, DST|SRC2IMM|UNSIGNED),
-	    new Mips(XOR,	"xori tsi",	IFMT, DST|SRC2IMM|UNSIGNED),
-	    new Mips(LUI,	"lui ti",	IFMT, DST|SRC2IMM|UNSIGNED),
+	    new Mips(JUMP,	"j j",		JFMT, BRANCH, opJ),
+	    new Mips(JUMP,	"jal j",	JFMT, BRANCH|LINK|DST|DSTRA, opJal),
+	    new Mips(BEQ,	"beq stj",	IFMT, BRANCH, opBeq),
+	    new Mips(BNE,	"bne stj",	IFMT, BRANCH, opBne),
+	    new Mips(BLEZ,	"blez sj",	IFMT, BRANCH, opBlez),
+	    new Mips(BGTZ,	"bgtz sj",	IFMT, BRANCH, opBgtz),
+	    new Mips(ADD,	"addi tsi",	IFMT, DST|SRC2IMM|OVERFLOW, opAddi),
+	    new Mips(ADD,	"addiu tsi",	IFMT, DST|SRC2IMM, opAddiu),
+	    new Mips(SLT,	"slti tsi",	IFMT, DST|SRC2IMM, opSlti),
+	    new Mips(SLT,	"sltiu tsi",	IFMT, DST|SRC2IMM|UNSIGNED, opSltiu),
+	    new Mips(AND,	"andi tsi",	IFMT, DST|SRC2IMM|UNSIGNED, opAndi),
+	    new Mips(OR,	"ori tsi",	IFMT, DST|SRC2IMM|UNSIGNED, opOri),
+	    new Mips(XOR,	"xori tsi",	IFMT, DST|SRC2IMM|UNSIGNED, opXori),
+	    new Mips(LUI,	"lui ti",	IFMT, DST|SRC2IMM|UNSIGNED, opLui),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(BEQ,	"beql stj",	IFMT, BRANCH),
-	    new Mips(BNE,	"bnel stj",	IFMT, BRANCH),
-	    new Mips(BLEZ,	"blezl sj",	IFMT, BRANCH),
-	    new Mips(BGTZ,	"bgtzl sj",	IFMT, BRANCH),
+	    new Mips(BEQ,	"beql stj",	IFMT, BRANCH, opBeq),
+	    new Mips(BNE,	"bnel stj",	IFMT, BRANCH, opBne),
+	    new Mips(BLEZ,	"blezl sj",	IFMT, BRANCH, opBlez),
+	    new Mips(BGTZ,	"bgtzl sj",	IFMT, BRANCH, opBgtz),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
@@ -1182,21 +2456,21 @@ public final class Processor {
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(LOAD,	"lb ta",	IFMT, DELAYEDLOAD|SIZEB),
-	    new Mips(LOAD,	"lh ta",	IFMT, DELAYEDLOAD|SIZEH),
-	    new Mips(LWL,	"lwl ta",	IFMT, DELAYEDLOAD),
-	    new Mips(LOAD,	"lw ta",	IFMT, DELAYEDLOAD|SIZEW),
-	    new Mips(LOAD,	"lbu ta",    IFMT, DELAYEDLOAD|SIZEB|UNSIGNED),
-	    new Mips(LOAD,	"lhu ta",    IFMT, DELAYEDLOAD|SIZEH|UNSIGNED),
-	    new Mips(LWR,	"lwr ta",	IFMT, DELAYEDLOAD),
+	    new Mips(LOAD,	"lb ta",	IFMT, DELAYEDLOAD|SIZEB, opLb),
+	    new Mips(LOAD,	"lh ta",	IFMT, DELAYEDLOAD|SIZEH, opLh),
+	    new Mips(LWL,	"lwl ta",	IFMT, DELAYEDLOAD, opLwl),
+	    new Mips(LOAD,	"lw ta",	IFMT, DELAYEDLOAD|SIZEW, opLw),
+	    new Mips(LOAD,	"lbu ta",    IFMT, DELAYEDLOAD|SIZEB|UNSIGNED, opLbu),
+	    new Mips(LOAD,	"lhu ta",    IFMT, DELAYEDLOAD|SIZEH|UNSIGNED, opLhu),
+	    new Mips(LWR,	"lwr ta",	IFMT, DELAYEDLOAD, opLwr),
 	    new Mips(),
-	    new Mips(STORE,	"sb ta",	IFMT, SIZEB),
-	    new Mips(STORE,	"sh ta",	IFMT, SIZEH),
-	    new Mips(SWL,   	"swl ta",	IFMT, 0),
-	    new Mips(STORE,	"sw ta",	IFMT, SIZEW),
+	    new Mips(STORE,	"sb ta",	IFMT, SIZEB, opSb),
+	    new Mips(STORE,	"sh ta",	IFMT, SIZEH, opSh),
+	    new Mips(SWL,   	"swl ta",	IFMT, 0, opSwl),
+	    new Mips(STORE,	"sw ta",	IFMT, SIZEW, opSw),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(SWR,   	"swr ta",	IFMT, 0),
+	    new Mips(SWR,   	"swr ta",	IFMT, 0, opSwr),
 	    new Mips(),
 	    new Mips(UNIMPL,	"ll "),
 	    new Mips(),
@@ -1217,50 +2491,50 @@ public final class Processor {
 	};
 
 	static final Mips[] specialtable = {
-	    new Mips(SLL,	"sll dth",	RFMT, DST|SRC1SH),
+	    new Mips(SLL,	"sll dth",	RFMT, DST|SRC1SH, opSll),
 	    new Mips(),
-	    new Mips(SRL,	"srl dth",	RFMT, DST|SRC1SH),
-	    new Mips(SRA,	"sra dth",	RFMT, DST|SRC1SH),
-	    new Mips(SLL,	"sllv dts",	RFMT, DST),
+	    new Mips(SRL,	"srl dth",	RFMT, DST|SRC1SH, opSrl),
+	    new Mips(SRA,	"sra dth",	RFMT, DST|SRC1SH, opSra),
+	    new Mips(SLL,	"sllv dts",	RFMT, DST, opSllv),
 	    new Mips(),
-	    new Mips(SRL,	"srlv dts",	RFMT, DST),
-	    new Mips(SRA,	"srav dts",	RFMT, DST),
-	    new Mips(JUMP,	"jr s",		RFMT, BRANCH),
-	    new Mips(JUMP,	"jalr rs",	RFMT, BRANCH|LINK|DST),
+	    new Mips(SRL,	"srlv dts",	RFMT, DST, opSrlv),
+	    new Mips(SRA,	"srav dts",	RFMT, DST, opSrav),
+	    new Mips(JUMP,	"jr s",		RFMT, BRANCH, opJr),
+	    new Mips(JUMP,	"jalr rs",	RFMT, BRANCH|LINK|DST, opJalr),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(SYSCALL,	"syscall "),
 	    new Mips(UNIMPL,	"break "),
 	    new Mips(),
 	    new Mips(UNIMPL,	"sync "),
-	    new Mips(MFHI,	"mfhi d",	RFMT, DST),
-	    new Mips(MTHI,	"mthi s",	RFMT, 0),
-	    new Mips(MFLO,	"mflo d",	RFMT, DST),
-	    new Mips(MTLO,	"mtlo s",	RFMT, 0),
+	    new Mips(MFHI,	"mfhi d",	RFMT, DST, opMfhi),
+	    new Mips(MTHI,	"mthi s",	RFMT, 0, opMthi),
+	    new Mips(MFLO,	"mflo d",	RFMT, DST, opMflo),
+	    new Mips(MTLO,	"mtlo s",	RFMT, 0, opMtlo),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(MULT,	"mult st",	RFMT, 0),
-	    new Mips(MULT,	"multu st",	RFMT, UNSIGNED),
-	    new Mips(DIV,	"div st",	RFMT, 0),
-	    new Mips(DIV,	"divu st",	RFMT, UNSIGNED),
+	    new Mips(MULT,	"mult st",	RFMT, 0, opMult),
+	    new Mips(MULT,	"multu st",	RFMT, UNSIGNED, opMultu),
+	    new Mips(DIV,	"div st",	RFMT, 0, opDiv),
+	    new Mips(DIV,	"divu st",	RFMT, UNSIGNED, opDivu),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(ADD,	"add dst",	RFMT, DST|OVERFLOW),
-	    new Mips(ADD,	"addu dst",	RFMT, DST),
-	    new Mips(SUB,	"sub dst",	RFMT, DST|OVERFLOW),
-	    new Mips(SUB,	"subu dst",	RFMT, DST),
-	    new Mips(AND,	"and dst",	RFMT, DST),
-	    new Mips(OR,	"or dst",	RFMT, DST),
-	    new Mips(XOR,	"xor dst",	RFMT, DST),
-	    new Mips(NOR,	"nor dst",	RFMT, DST),
+	    new Mips(ADD,	"add dst",	RFMT, DST|OVERFLOW, opAdd),
+	    new Mips(ADD,	"addu dst",	RFMT, DST, opAddu),
+	    new Mips(SUB,	"sub dst",	RFMT, DST|OVERFLOW, opSub),
+	    new Mips(SUB,	"subu dst",	RFMT, DST, opSubu),
+	    new Mips(AND,	"and dst",	RFMT, DST, opAnd),
+	    new Mips(OR,	"or dst",	RFMT, DST, opOr),
+	    new Mips(XOR,	"xor dst",	RFMT, DST, opXor),
+	    new Mips(NOR,	"nor dst",	RFMT, DST, opNor),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(SLT,	"slt dst",	RFMT, DST),
-	    new Mips(SLT,	"sltu dst",	RFMT, DST|UNSIGNED),
+	    new Mips(SLT,	"slt dst",	RFMT, DST, opSlt),
+	    new Mips(SLT,	"sltu dst",	RFMT, DST|UNSIGNED, opSltu),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
@@ -1284,10 +2558,10 @@ public final class Processor {
 	};
 
 	static final Mips[] regimmtable = {
-	    new Mips(BLTZ,	"bltz sj",	IFMT, BRANCH),
-	    new Mips(BGEZ,	"bgez sj",	IFMT, BRANCH),
-	    new Mips(BLTZ,	"bltzl sj",	IFMT, BRANCH),
-	    new Mips(BGEZ,	"bgezl sj",	IFMT, BRANCH),
+	    new Mips(BLTZ,	"bltz sj",	IFMT, BRANCH, opBltz),
+	    new Mips(BGEZ,	"bgez sj",	IFMT, BRANCH, opBgez),
+	    new Mips(BLTZ,	"bltzl sj",	IFMT, BRANCH, opBltz),
+	    new Mips(BGEZ,	"bgezl sj",	IFMT, BRANCH, opBgez),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
@@ -1300,10 +2574,10 @@ public final class Processor {
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
-	    new Mips(BLTZ,	"bltzal sj",	IFMT, BRANCH|LINK|DST|DSTRA),
-	    new Mips(BGEZ,	"bgezal sj",	IFMT, BRANCH|LINK|DST|DSTRA),
-	    new Mips(BLTZ,	"bltzlal sj",	IFMT, BRANCH|LINK|DST|DSTRA),
-	    new Mips(BGEZ,	"bgezlal sj",	IFMT, BRANCH|LINK|DST|DSTRA),
+	    new Mips(BLTZ,	"bltzal sj",	IFMT, BRANCH|LINK|DST|DSTRA, opBltzal),
+	    new Mips(BGEZ,	"bgezal sj",	IFMT, BRANCH|LINK|DST|DSTRA, opBgezal),
+	    new Mips(BLTZ,	"bltzlal sj",	IFMT, BRANCH|LINK|DST|DSTRA, opBltzal),
+	    new Mips(BGEZ,	"bgezlal sj",	IFMT, BRANCH|LINK|DST|DSTRA, opBgezal),
 	    new Mips(),
 	    new Mips(),
 	    new Mips(),
@@ -0,0 +1,131 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A sampling profiler for user programs. The processor reports the PC every
+ * so many user ticks, and the profiler charges the sample to the function
+ * containing it, using the symbol table of the COFF executable whose code
+ * was last loaded into the PC's physical page. Samples from every process
+ * running the same program are counted together.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	numPhysPages	the number of pages of physical memory.
+     * @param	interval	the number of user ticks between samples.
+     */
+    Profiler(int numPhysPages, int interval) {
+	Lib.assertTrue(interval > 0);
+
+	this.interval = interval;
+	owners = new Coff[numPhysPages];
+    }
+
+    /**
+     * Return the number of user ticks between samples.
+     *
+     * @return	the sampling interval.
+     */
+    int getInterval() {
+	return interval;
+    }
+
+    /**
+     * Record that a page of the specified executable was loaded into the
+     * specified physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @param	coff	the executable.
+     */
+    void pageLoaded(int ppn, Coff coff) {
+	// the loader is running in the kernel, so it is safe to read the file
+	coff.loadSymbols();
+	owners[ppn] = coff;
+    }
+
+    /**
+     * Take one sample.
+     *
+     * @param	ppn	the physical page containing the PC, or -1 if the PC
+     *			is not mapped.
+     * @param	pc	the virtual address of the next instruction.
+     */
+    void sample(int ppn, int pc) {
+	numSamples++;
+
+	Coff coff = (ppn >= 0) ? owners[ppn] : null;
+	String function = (coff != null) ? coff.getFunctionName(pc) : null;
+	if (function == null) {
+	    numUnknown++;
+	    return;
+	}
+
+	HashMap<String,int[]> functions = samples.get(coff.getName());
+	if (functions == null) {
+	    functions = new HashMap<String,int[]>();
+	    samples.put(coff.getName(), functions);
+	}
+
+	int[] count = functions.get(function);
+	if (count == null)
+	    functions.put(function, new int[] {1});
+	else
+	    count[0]++;
+    }
+
+    /**
+     * Print the hottest functions, most samples first.
+     */
+    void print() {
+	System.out.println("Profile: " + numSamples + " samples, one every "
+			   + interval + " user ticks");
+	if (numSamples == 0)
+	    return;
+
+	ArrayList<Map.Entry<String,Integer>> report =
+	    new ArrayList<Map.Entry<String,Integer>>();
+
+	for (Map.Entry<String,HashMap<String,int[]>> program :
+		 samples.entrySet()) {
+	    String name = program.getKey();
+
+	    for (Map.Entry<String,int[]> function :
+		     program.getValue().entrySet()) {
+		report.add(Map.entry(function.getKey() + " (" + name + ")",
+				     function.getValue()[0]));
+	    }
+	}
+	if (numUnknown > 0)
+	    report.add(Map.entry("(unknown)", numUnknown));
+
+	Collections.sort(report,
+			 Map.Entry.<String,Integer>comparingByValue(
+			     Comparator.reverseOrder()));
+
+	for (int i=0; i<report.size() && i<maxFunctions; i++) {
+	    int count = report.get(i).getValue();
+	    System.out.println(String.format("%6.2f%% %8d  %s",
+					     100.0 * count / numSamples, count,
+					     report.get(i).getKey()));
+	}
+    }
+
+    private int interval;
+    private Coff[] owners;
+    /** Sample counts, by program name and then by function name. */
+    private HashMap<String,HashMap<String,int[]>> samples =
+	new HashMap<String,HashMap<String,int[]>>();
+    private int numSamples = 0;
+    private int numUnknown = 0;
+
+    /** The number of functions listed by <tt>print()</tt>. */
+    private static final int maxFunctions = 20;
+}
@@ -0,0 +1,367 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A snapshot of the simulated machine, saved to a host file so that a later
+ * run can continue from the same point and replay the rest of the saved run
+ * exactly. A snapshot holds the user registers, physical memory, the TLB
+ * (if there is one), the page table the kernel passes in, <tt>Stats</tt>, the
+ * time of every pending interrupt, and the state of the random number
+ * generator.
+ *
+ * <p>
+ * The kernel's own Java objects can not be saved, so a snapshot can only be
+ * restored by a kernel that has started up the same way, except that it has
+ * not loaded the user program: the same interrupts must be pending, and the
+ * kernel must have allocated the same physical pages. <tt>restore()</tt> then
+ * moves the clock and the pending interrupts to where they were when the
+ * snapshot was saved, and the run continues exactly as the saved one did.
+ *
+ * <p>
+ * Snapshots are created with <tt>Machine.saveSnapshot()</tt> and read with
+ * <tt>Machine.loadSnapshot()</tt>.
+ */
+public final class Snapshot {
+    /**
+     * Read a snapshot from the specified host file. Nothing is restored until
+     * <tt>restore()</tt> is called.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the host file to read.
+     */
+    Snapshot(Privilege privilege, final String fileName) {
+	this.privilege = privilege;
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { read(fileName); }
+	    });
+    }
+
+    /**
+     * Save a snapshot of the machine to the specified host file. The
+     * processor must not be in the middle of a user instruction, so this
+     * should be called from the kernel.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the host file to write.
+     * @param	pageTable	the page table to save, or <tt>null</tt>.
+     */
+    static void save(Privilege privilege, final String fileName,
+		     TranslationEntry[] pageTable) {
+	Lib.debug(dbgSnapshot, "saving snapshot to " + fileName);
+
+	final Snapshot snapshot = new Snapshot(privilege);
+	snapshot.capture(pageTable);
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { snapshot.write(fileName); }
+	    });
+    }
+
+    private Snapshot(Privilege privilege) {
+	this.privilege = privilege;
+    }
+
+    /**
+     * Return a copy of the page table saved in this snapshot.
+     *
+     * @return	the saved page table, or <tt>null</tt> if none was saved.
+     */
+    public TranslationEntry[] getPageTable() {
+	if (pageTable == null)
+	    return null;
+
+	TranslationEntry[] result = new TranslationEntry[pageTable.length];
+	for (int i=0; i<pageTable.length; i++)
+	    result[i] = new TranslationEntry(pageTable[i]);
+
+	return result;
+    }
+
+    /**
+     * Restore the machine to the state saved in this snapshot. The same
+     * kinds of interrupts must be pending as when it was saved.
+     */
+    public void restore() {
+	Lib.debug(dbgSnapshot, "restoring snapshot");
+
+	Processor processor = Machine.processor();
+	Lib.assertTrue(processor.getNumPhysPages() == numPhysPages,
+		       "snapshot has a different amount of physical memory");
+	Lib.assertTrue(processor.hasTLB() == (tlb != null),
+		       "snapshot has a different kind of address translation");
+
+	Stats stats = privilege.stats;
+	stats.totalTicks = totalTicks;
+	stats.kernelTicks = kernelTicks;
+	stats.userTicks = userTicks;
+	stats.idleTicks = idleTicks;
+	stats.numDiskReads = counters[0];
+	stats.numDiskWrites = counters[1];
+	stats.numConsoleReads = counters[2];
+	stats.numConsoleWrites = counters[3];
+	stats.numPageFaults = counters[4];
+	stats.numTLBMisses = counters[5];
+	stats.numPacketsSent = counters[6];
+	stats.numPacketsReceived = counters[7];
+	System.arraycopy(numInstructions, 0, stats.numInstructions, 0,
+			 numInstructions.length);
+
+	Machine.interrupt().restorePending(pendingTimes, pendingTypes);
+	Lib.reseedRandom(randomSeed);
+
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, registers[i]);
+
+	if (tlb != null) {
+	    for (int i=0; i<tlb.length; i++)
+		processor.writeTLBEntry(i, tlb[i]);
+	}
+
+	byte[] zero = new byte[Processor.pageSize];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    byte[] page = (pages[ppn] != null) ? pages[ppn] : zero;
+	    processor.writeMemory(ppn*Processor.pageSize, page, 0, page.length);
+	    processor.invalidateDecodedPage(ppn);
+	}
+    }
+
+    private void capture(TranslationEntry[] pageTable) {
+	Processor processor = Machine.processor();
+	numPhysPages = processor.getNumPhysPages();
+
+	// both this run and any run that restores this snapshot continue with
+	// the same random numbers
+	randomSeed = Lib.random(Integer.MAX_VALUE);
+	Lib.reseedRandom(randomSeed);
+
+	Stats stats = privilege.stats;
+	totalTicks = stats.totalTicks;
+	kernelTicks = stats.kernelTicks;
+	userTicks = stats.userTicks;
+	idleTicks = stats.idleTicks;
+	counters = new int[] {
+	    stats.numDiskReads, stats.numDiskWrites,
+	    stats.numConsoleReads, stats.numConsoleWrites,
+	    stats.numPageFaults, stats.numTLBMisses,
+	    stats.numPacketsSent, stats.numPacketsReceived };
+	numInstructions = stats.numInstructions.clone();
+
+	pendingTimes = Machine.interrupt().pendingTimes();
+	pendingTypes = Machine.interrupt().pendingTypes();
+
+	registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<registers.length; i++)
+	    registers[i] = processor.readRegister(i);
+
+	if (processor.hasTLB()) {
+	    tlb = new TranslationEntry[processor.getTLBSize()];
+	    for (int i=0; i<tlb.length; i++)
+		tlb[i] = processor.readTLBEntry(i);
+	}
+
+	if (pageTable != null) {
+	    this.pageTable = new TranslationEntry[pageTable.length];
+	    for (int i=0; i<pageTable.length; i++)
+		this.pageTable[i] = new TranslationEntry(pageTable[i]);
+	}
+
+	// only pages that are not all zero are kept
+	pages = new byte[numPhysPages][];
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    byte[] page = new byte[Processor.pageSize];
+	    processor.readMemory(ppn*Processor.pageSize, page, 0, page.length);
+
+	    for (int i=0; i<page.length; i++) {
+		if (page[i] != 0) {
+		    pages[ppn] = page;
+		    break;
+		}
+	    }
+	}
+    }
+
+    private void write(String fileName) {
+	try {
+	    DataOutputStream out =
+		new DataOutputStream(new BufferedOutputStream(
+		    new GZIPOutputStream(new FileOutputStream(fileName))));
+	    try {
+		out.writeInt(magic);
+		out.writeInt(formatVersion);
+		out.writeInt(numPhysPages);
+		out.writeLong(randomSeed);
+
+		out.writeLong(totalTicks);
+		out.writeLong(kernelTicks);
+		out.writeLong(userTicks);
+		out.writeLong(idleTicks);
+		for (int i=0; i<counters.length; i++)
+		    out.writeInt(counters[i]);
+		for (int i=0; i<numInstructions.length; i++)
+		    out.writeLong(numInstructions[i]);
+
+		// pending interrupts are saved relative to the current time
+		out.writeInt(pendingTimes.length);
+		for (int i=0; i<pendingTimes.length; i++) {
+		    out.writeLong(pendingTimes[i] - totalTicks);
+		    out.writeUTF(pendingTypes[i]);
+		}
+
+		for (int i=0; i<registers.length; i++)
+		    out.writeInt(registers[i]);
+
+		writeEntries(out, tlb);
+		writeEntries(out, pageTable);
+
+		for (int ppn=0; ppn<numPhysPages; ppn++) {
+		    if (pages[ppn] != null) {
+			out.writeInt(ppn);
+			out.write(pages[ppn]);
+		    }
+		}
+		out.writeInt(-1);
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not save snapshot: " + e);
+	}
+    }
+
+    private void read(String fileName) {
+	try {
+	    DataInputStream in =
+		new DataInputStream(new BufferedInputStream(
+		    new GZIPInputStream(new FileInputStream(fileName))));
+	    try {
+		Lib.assertTrue(in.readInt() == magic,
+			       fileName + " is not a snapshot");
+		Lib.assertTrue(in.readInt() == formatVersion,
+			       fileName + " was saved by a different version " +
+			       "of Nachos");
+		numPhysPages = in.readInt();
+		randomSeed = in.readLong();
+
+		totalTicks = in.readLong();
+		kernelTicks = in.readLong();
+		userTicks = in.readLong();
+		idleTicks = in.readLong();
+		counters = new int[numCounters];
+		for (int i=0; i<counters.length; i++)
+		    counters[i] = in.readInt();
+		numInstructions = new long[Stats.numInstructionClasses];
+		for (int i=0; i<numInstructions.length; i++)
+		    numInstructions[i] = in.readLong();
+
+		pendingTimes = new long[in.readInt()];
+		pendingTypes = new String[pendingTimes.length];
+		for (int i=0; i<pendingTimes.length; i++) {
+		    pendingTimes[i] = totalTicks + in.readLong();
+		    pendingTypes[i] = in.readUTF();
+		}
+
+		registers = new int[Processor.numUserRegisters];
+		for (int i=0; i<registers.length; i++)
+		    registers[i] = in.readInt();
+
+		tlb = readEntries(in);
+		pageTable = readEntries(in);
+
+		pages = new byte[numPhysPages][];
+		for (int ppn=in.readInt(); ppn != -1; ppn=in.readInt()) {
+		    pages[ppn] = new byte[Processor.pageSize];
+		    in.readFully(pages[ppn]);
+		}
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not load snapshot: " + e);
+	}
+    }
+
+    private static void writeEntries(DataOutputStream out,
+				     TranslationEntry[] entries)
+	throws IOException {
+	if (entries == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+
+	out.writeInt(entries.length);
+	for (int i=0; i<entries.length; i++) {
+	    TranslationEntry entry = entries[i];
+	    out.writeInt(entry.vpn);
+	    out.writeInt(entry.ppn);
+	    out.writeByte((entry.valid ? 1 : 0) | (entry.readOnly ? 2 : 0) |
+			  (entry.used ? 4 : 0) | (entry.dirty ? 8 : 0));
+	}
+    }
+
+    private static TranslationEntry[] readEntries(DataInputStream in)
+	throws IOException {
+	int length = in.readInt();
+	if (length == -1)
+	    return null;
+
+	TranslationEntry[] entries = new TranslationEntry[length];
+	for (int i=0; i<length; i++) {
+	    int vpn = in.readInt();
+	    int ppn = in.readInt();
+	    int flags = in.readByte();
+	    entries[i] = new TranslationEntry(vpn, ppn, (flags & 1) != 0,
+					      (flags & 2) != 0,
+					      (flags & 4) != 0,
+					      (flags & 8) != 0);
+	}
+
+	return entries;
+    }
+
+    private Privilege privilege;
+
+    private int numPhysPages;
+    private long randomSeed;
+    private long totalTicks, kernelTicks, userTicks, idleTicks;
+    /** The <tt>Stats</tt> event counters, in the order they are saved. */
+    private int[] counters;
+    private long[] numInstructions;
+    private long[] pendingTimes;
+    private String[] pendingTypes;
+    private int[] registers;
+    private TranslationEntry[] tlb = null;
+    private TranslationEntry[] pageTable = null;
+    /** The contents of each physical page, or <tt>null</tt> if all zero. */
+    private byte[][] pages;
+
+    private static final int magic = 0x4E534E50;
+    /**
+     * The version of the image layout, written after <tt>magic</tt>.
+     * Increment it whenever the layout changes, so that older images are
+     * rejected instead of misread.
+     */
+    private static final int formatVersion = 1;
+    private static final int numCounters = 8;
+
+    private static final char dbgSnapshot = 's';
+}
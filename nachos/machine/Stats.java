@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -20,7 +24,8 @@ public final class Stats {
     public void print() {
 	System.out.println("Ticks: total " + totalTicks
 			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+			   + ", user " + userTicks
+			   + (idleTicks > 0 ? ", idle " + idleTicks : ""));
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
@@ -29,6 +34,78 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	long total = 0;
+	for (int i=0; i<numInstructions.length; i++)
+	    total += numInstructions[i];
+
+	if (total > 0) {
+	    StringBuffer line = new StringBuffer("Instructions: total " + total);
+	    for (int i=0; i<numInstructions.length; i++)
+		line.append(", " + instructionClassNames[i] + " "
+			    + numInstructions[i]);
+	    System.out.println(line);
+	}
+    }
+
+    /**
+     * Write the statistics in this object to the specified host file, as
+     * comma-separated <tt>statistic,value</tt> lines. Requires privilege.
+     *
+     * @param	fileName	the host file to write.
+     */
+    public void writeCSV(String fileName) {
+	try {
+	    PrintWriter out = new PrintWriter(new FileWriter(fileName));
+	    try {
+		out.println("statistic,value");
+		for (int i=0; i<statisticKeys.length; i++)
+		    out.println(statisticKeys[i] + "," + getStatistic(i));
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("could not write stats: " + e);
+	}
+    }
+
+    /**
+     * Register every statistic in this object as a gauge named
+     * <tt>machine.</tt> followed by its name in <tt>writeCSV()</tt>.
+     *
+     * @param	metrics	the registry.
+     */
+    void registerMetrics(Metrics metrics) {
+	for (int i=0; i<statisticKeys.length; i++) {
+	    final int statistic = i;
+	    metrics.gauge("machine." + statisticKeys[i], new Metrics.Gauge() {
+		    public long value() { return getStatistic(statistic); }
+		});
+	}
+    }
+
+    /**
+     * Return the value of the statistic named by
+     * <tt>statisticKeys[<i>statistic</i>]</tt>.
+     */
+    private long getStatistic(int statistic) {
+	switch (statistic) {
+	case 0:  return totalTicks;
+	case 1:  return kernelTicks;
+	case 2:  return userTicks;
+	case 3:  return idleTicks;
+	case 4:  return numDiskReads;
+	case 5:  return numDiskWrites;
+	case 6:  return numConsoleReads;
+	case 7:  return numConsoleWrites;
+	case 8:  return numPageFaults;
+	case 9:  return numTLBMisses;
+	case 10: return numPacketsSent;
+	case 11: return numPacketsReceived;
+	default: return numInstructions[statistic - 12];
+	}
     }
 
     /**
@@ -44,6 +121,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that Nachos has skipped because no
+     * thread was ready to run. See <tt>Interrupt.idle()</tt>.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -61,6 +143,47 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The number of user instructions executed in each class, indexed by the
+     * <tt>Inst<i>*</i></tt> constants. Only counted if
+     * <tt>Processor.countInstructions</tt> is set.
+     */
+    public long[] numInstructions = new long[numInstructionClasses];
+
+    /** Loads, including <tt>lwl</tt> and <tt>lwr</tt>. */
+    public static final int InstLoad = 0;
+    /** Stores, including <tt>swl</tt> and <tt>swr</tt>. */
+    public static final int InstStore = 1;
+    /** Conditional branches that were taken. */
+    public static final int InstBranchTaken = 2;
+    /** Conditional branches that were not taken. */
+    public static final int InstBranchNotTaken = 3;
+    /** Jumps, with or without link. */
+    public static final int InstJump = 4;
+    /** Multiplies and divides. */
+    public static final int InstMultDiv = 5;
+    /** System calls. */
+    public static final int InstSyscall = 6;
+    /** Everything else: arithmetic, logical, shifts and moves. */
+    public static final int InstOther = 7;
+    /** The number of instruction classes. */
+    public static final int numInstructionClasses = 8;
+
+    private static final String[] instructionClassNames = {
+	"loads", "stores", "branches taken", "not taken", "jumps",
+	"mult/div", "syscalls", "other"
+    };
+    /** The name of each statistic, in the order of <tt>getStatistic()</tt>. */
+    private static final String[] statisticKeys = {
+	"totalTicks", "kernelTicks", "userTicks", "idleTicks",
+	"numDiskReads", "numDiskWrites", "numConsoleReads", "numConsoleWrites",
+	"numPageFaults", "numTLBMisses", "numPacketsSent",
+	"numPacketsReceived",
+	"instructions.loads", "instructions.stores",
+	"instructions.branchesTaken", "instructions.branchesNotTaken",
+	"instructions.jumps", "instructions.multDivs", "instructions.syscalls",
+	"instructions.other"
+    };
 
     /**
      * The amount to advance simulated time after each user instructions is
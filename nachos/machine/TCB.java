@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +17,34 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * A TCB waiting for its turn to run normally waits on its own monitor. If
+ * <tt>TCB.handoff</tt> is <tt>park</tt>, it parks its Java thread with
+ * <tt>LockSupport</tt> instead, and the TCB switching to it unparks it
+ * directly. This is faster while there are few threads, but on some JVMs
+ * unparking a thread costs more the more Java threads there are, so with
+ * thousands of threads the monitor is faster. <tt>TCB.maxThreads</tt> raises
+ * the limit on the number of TCBs, and <tt>TCB.stackSize</tt> sets the stack
+ * size of their Java threads, in bytes, so that many more can exist at once.
+ *
+ * <p>
+ * If <tt>TCB.pool</tt> is set, the Java thread of a destroyed TCB is kept in
+ * a pool and reused by the next TCB to start, instead of exiting; a new Java
+ * thread is only created when the pool is empty.
+ *
+ * <p>
+ * If <tt>TCB.virtual</tt> is set and the JVM has virtual threads (Java 21 or
+ * later, which Nachos must then be run on with
+ * <tt>-Djava.security.manager=allow</tt>), every TCB but the first runs on a
+ * virtual thread. Virtual threads are parked and unparked by the JVM itself
+ * rather than by the operating system, so a switch between them stays cheap
+ * however many there are, and they need no stack of their own while they
+ * wait. They always use the <tt>park</tt> handoff, since waiting on a monitor
+ * would hold on to a host thread, they are not pooled, and
+ * <tt>TCB.stackSize</tt> does not apply to them. Unless
+ * <tt>TCB.maxThreads</tt> is set, up to <tt>maxVirtualThreads</tt> TCBs may
+ * exist at once. On an older JVM the key is ignored, with a warning.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +71,47 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String handoff = Config.getString("TCB.handoff", "monitor");
+	Lib.assertTrue(handoff.equals("monitor") || handoff.equals("park"),
+		       "unknown TCB.handoff: " + handoff);
+	parking = handoff.equals("park");
+	pooling = Config.getBoolean("TCB.pool", false);
+
+	if (Config.getBoolean("TCB.virtual", false)) {
+	    virtualThreads = virtualThreadFactory();
+	    if (virtualThreads == null) {
+		System.out.println("\nTCB.virtual ignored: this JVM has no " +
+				   "virtual threads");
+	    }
+	    else {
+		parking = true;
+		pooling = false;
+	    }
+	}
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					(virtualThreads != null) ?
+					maxVirtualThreads : maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+    }
+
+    /**
+     * Return a factory for virtual threads, or <tt>null</tt> if this JVM has
+     * none, or has them only as a preview that is not enabled. They are
+     * looked up by reflection, since Nachos is compiled for JVMs without
+     * them.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+	try {
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    return (ThreadFactory)
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("factory").invoke(builder);
+	}
+	catch (Exception e) {
+	    return null;
+	}
     }
     
     /**
@@ -66,7 +138,8 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit,
+		       "too many threads: " + threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,18 +158,40 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && pooling && !idleWorkers.isEmpty()) {
+	    /* There is a Java thread in the pool, waiting in
+	     * Worker.nextTCB(). Hand it this TCB, and wait for it to wake us
+	     * up from threadroot(), as below.
+	     */
+	    worker = idleWorkers.remove(idleWorkers.size()-1);
+	    javaThread = worker.javaThread;
+
+	    currentTCB.running = false;
+
+	    worker.assign(this);
+	    currentTCB.waitForInterrupt();
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
 	     * to run it. Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    if (pooling) {
+		worker = new Worker(this);
+		tcbTarget = worker;
+	    }
+	    else {
+		tcbTarget = new Runnable() {
+			public void run() { threadroot(); }
+		    };
+	    }
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
+	    if (worker != null)
+		worker.javaThread = javaThread;
+
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
 	     * current TCB, starting the new Java thread, and waiting for it
@@ -187,6 +282,12 @@ public final class TCB {
 	currentTCB.waitForInterrupt();
 	
 	this.javaThread = null;
+
+	/* A pooled Java thread goes on to run another TCB instead of exiting,
+	 * so this TCB stops counting towards the limit now.
+	 */
+	if (worker != null)
+	    runningThreads.removeElement(this);
     }
 
     /**
@@ -207,6 +308,21 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Create a Java thread to run the specified target: a virtual thread if
+     * <tt>TCB.virtual</tt> is in effect, and otherwise a thread with a stack
+     * of <tt>TCB.stackSize</tt> bytes if it is set. Requires privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreads != null)
+	    return virtualThreads.newThread(target);
+	else if (stackSize == 0)
+	    return new Thread(target);
+	else
+	    return new Thread(null, target, "TCB-" + numJavaThreads++,
+			      stackSize);
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -244,6 +360,10 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
+	    // destroy() has already removed a pooled TCB
+	    if (worker != null)
+		return;
+
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
@@ -272,6 +392,12 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* A pooled Java thread returns to the pool before acknowledging,
+	     * so that only the running TCB ever uses the pool.
+	     */
+	    if (worker != null)
+		idleWorkers.add(worker);
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -286,8 +412,24 @@ public final class TCB {
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * If <tt>TCB.handoff</tt> is <tt>park</tt>, the Java thread parks until
+     * <tt>running</tt> is set instead. <tt>running</tt> is volatile, so the
+     * TCB that set it happens-before this one continues, just as if they had
+     * used the monitor.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (!parking) {
+	    waitOnMonitor();
+	    return;
+	}
+
+	while (!running)
+	    LockSupport.park(this);
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -298,9 +440,20 @@ public final class TCB {
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
      * and signalling the monitor bound to it. Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * TCB. If <tt>TCB.handoff</tt> is <tt>park</tt>, the Java thread bound
+     * to this TCB is unparked instead.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (!parking) {
+	    notifyMonitor();
+	    return;
+	}
+
+	running = true;
+	LockSupport.unpark(javaThread);
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -328,9 +481,35 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> is set.
      */
     public static final int maxThreads = 250;
+    /**
+     * The maximum number of started, non-destroyed TCB's when they run on
+     * virtual threads, unless <tt>TCB.maxThreads</tt> is set.
+     */
+    public static final int maxVirtualThreads = 100000;
+
+    /** The limit on the number of TCB's (<tt>TCB.maxThreads</tt>). */
+    private static int threadLimit = maxThreads;
+    /** <tt>true</tt> if TCB's park instead of waiting on a monitor. */
+    private static boolean parking = false;
+    /**
+     * Creates the Java threads of new TCB's if they are virtual
+     * (<tt>TCB.virtual</tt>), or <tt>null</tt>.
+     */
+    private static ThreadFactory virtualThreads = null;
+    /** The stack size of new Java threads, or 0 for the default. */
+    private static long stackSize = 0;
+    /** <tt>true</tt> if Java threads are reused (<tt>TCB.pool</tt>). */
+    private static boolean pooling = false;
+    /**
+     * The pooled Java threads not running any TCB. Only the current TCB
+     * uses this list, and a TCB being destroyed adds its worker before
+     * handing the CPU back, so it needs no synchronization.
+     */
+    private static ArrayList<Worker> idleWorkers = new ArrayList<Worker>();
+    private static int numJavaThreads = 0;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -388,7 +567,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -401,6 +580,45 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    /** The pooled Java thread running this TCB, or <tt>null</tt>. */
+    private Worker worker = null;
+
+    /**
+     * A Java thread that runs one TCB after another, when <tt>TCB.pool</tt>
+     * is set. Between TCBs it waits in the pool of idle workers until
+     * <tt>start()</tt> assigns it another.
+     */
+    private static class Worker implements Runnable {
+	Worker(TCB first) {
+	    next = first;
+	}
+
+	public void run() {
+	    while (true)
+		nextTCB().threadroot();
+	}
+
+	synchronized void assign(TCB tcb) {
+	    Lib.assertTrue(next == null);
+
+	    next = tcb;
+	    notify();
+	}
+
+	private synchronized TCB nextTCB() {
+	    while (next == null) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
+
+	    TCB tcb = next;
+	    next = null;
+	    return tcb;
+	}
+
+	Thread javaThread;
+	private TCB next;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
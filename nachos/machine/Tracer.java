@@ -0,0 +1,151 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the last instructions executed by the processor in a fixed-size
+ * ring buffer. Each record holds the PC, the instruction word, the address
+ * of the memory reference (0 if none), and the time the instruction started.
+ * Nothing is printed while recording; <tt>dump()</tt> writes the records
+ * oldest first to a binary file, which <tt>main()</tt> decodes offline:
+ *
+ * <pre>
+ * java nachos.machine.Tracer nachos.trace
+ * </pre>
+ */
+public final class Tracer {
+    /**
+     * Allocate a new tracer.
+     *
+     * @param	length	the number of records to keep, rounded up to a power
+     *			of two.
+     */
+    Tracer(int length) {
+	Lib.assertTrue(length > 0 && length <= (1<<24));
+
+	int capacity = 1;
+	while (capacity < length)
+	    capacity <<= 1;
+
+	mask = capacity-1;
+	words = new int[capacity*3];
+	ticks = new long[capacity];
+    }
+
+    /**
+     * Record one instruction.
+     *
+     * @param	pc	the virtual address of the instruction.
+     * @param	value	the instruction word.
+     * @param	addr	the virtual address it references, or 0.
+     * @param	tick	the time it started.
+     */
+    void record(int pc, int value, int addr, long tick) {
+	int i = (int) (count++) & mask;
+
+	words[i*3+0] = pc;
+	words[i*3+1] = value;
+	words[i*3+2] = addr;
+	ticks[i] = tick;
+    }
+
+    /**
+     * Write the recorded instructions to the specified host file, oldest
+     * first. Requires privilege.
+     *
+     * @param	fileName	the host file to write.
+     */
+    void dump(String fileName) {
+	long first = Math.max(count - (mask+1), 0);
+
+	try {
+	    DataOutputStream out =
+		new DataOutputStream(new BufferedOutputStream(
+		    new FileOutputStream(fileName)));
+	    try {
+		out.writeInt(magic);
+		out.writeLong(first);
+		out.writeInt((int) (count - first));
+
+		for (long n=first; n<count; n++) {
+		    int i = (int) n & mask;
+		    out.writeInt(words[i*3+0]);
+		    out.writeInt(words[i*3+1]);
+		    out.writeInt(words[i*3+2]);
+		    out.writeLong(ticks[i]);
+		}
+	    }
+	    finally {
+		out.close();
+	    }
+	}
+	catch (IOException e) {
+	    System.out.println("could not write trace: " + e);
+	}
+    }
+
+    /**
+     * Decode a trace written by <tt>dump()</tt> and print one instruction
+     * per line: its number, tick, PC, instruction word, disassembly and,
+     * for loads and stores, the address referenced.
+     *
+     * @param	args	the name of the trace file.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length != 1) {
+	    System.err.println("usage: java nachos.machine.Tracer <trace file>");
+	    System.exit(1);
+	}
+
+	DataInputStream in =
+	    new DataInputStream(new BufferedInputStream(
+		new FileInputStream(args[0])));
+	try {
+	    if (in.readInt() != magic) {
+		System.err.println(args[0] + " is not a trace");
+		System.exit(1);
+	    }
+
+	    long first = in.readLong();
+	    int length = in.readInt();
+
+	    for (long n=first; n<first+length; n++) {
+		int pc = in.readInt();
+		int value = in.readInt();
+		int addr = in.readInt();
+		long tick = in.readLong();
+
+		String inst = Processor.disassemble(pc, value);
+		System.out.println(n + "\t" + tick + "\t0x" + Lib.toHexString(pc)
+				   + "\t" + Lib.toHexString(value) + "\t" + inst
+				   + (Processor.referencesMemory(value)
+				      ? "\t[0x" + Lib.toHexString(addr) + "]"
+				      : ""));
+	    }
+	}
+	catch (EOFException e) {
+	    System.err.println(args[0] + " is truncated");
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    private int mask;
+    /** The PC, instruction word and address of each record. */
+    private int[] words;
+    private long[] ticks;
+    /** The number of instructions recorded so far. */
+    private long count = 0;
+
+    private static final int magic = 0x4E545243;
+}
@@ -39,6 +39,9 @@ public class PostOffice {
 	Machine.networkLink().setInterruptHandlers(receiveHandler,
 						   sendHandler);
 
+	numMailSent = Machine.metrics().counter("network.mailSent");
+	numMailDelivered = Machine.metrics().counter("network.mailDelivered");
+
 	KThread t = new KThread(new Runnable() {
 		public void run() { postalDelivery(); }
 	    });
@@ -90,6 +93,7 @@ public class PostOffice {
 
 	    // atomically add message to the mailbox and wake a waiting thread
 	    queues[mail.dstPort].add(mail);
+	    numMailDelivered.increment();
 	}
     }
 
@@ -112,6 +116,7 @@ public class PostOffice {
 
 	Machine.networkLink().send(mail.packet);
 	messageSent.P();
+	numMailSent.increment();
 
 	sendLock.release();
     }
@@ -129,6 +134,7 @@ public class PostOffice {
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
+    private Metrics.Counter numMailSent, numMailDelivered;
 
     private static final char dbgNet = 'n';
 }
@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can pass before the next
+	 * pending interrupt is due.
+	 *
+	 * @return	the number of user ticks that will not invoke any
+	 *		interrupt handlers.
+	 */
+	public long ticksUntilDue();
+
+	/**
+	 * Advance the simulated time by several user ticks at once. No
+	 * interrupt may become due in that time.
+	 *
+	 * @param	count	the number of user ticks, at most
+	 *			<tt>ticksUntilDue()</tt>.
+	 */
+	public void skipUserTicks(long count);
     }
 
     /**
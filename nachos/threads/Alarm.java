@@ -20,6 +20,10 @@ public class Alarm {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+
+	Machine.metrics().gauge("threads.alarm.sleeping", new Metrics.Gauge() {
+		public long value() { return waitQueue.size(); }
+	    });
     }
 
     /**
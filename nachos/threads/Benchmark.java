@@ -0,0 +1,417 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Microbenchmarks of the thread system's primitives: <tt>fork()</tt> and
+ * <tt>join()</tt>, <tt>yield()</tt>, <tt>Semaphore</tt>, <tt>Lock</tt>,
+ * <tt>Condition2</tt> and <tt>Communicator</tt>, and of running short tasks
+ * in their own threads or with an <tt>Executor</tt>, and stress tests of
+ * the scheduler's queues and priority donation. Each benchmark prints the
+ * number of operations it did, and the simulated ticks, context switches and
+ * host nanoseconds per operation. The last also prints how far the scheduler
+ * strays from sharing the processor in proportion to priority, as a
+ * proportional-share scheduler should.
+ *
+ * <p>
+ * The benchmarks use whichever scheduler <tt>ThreadedKernel.scheduler</tt>
+ * names, and print its name with the results; to compare schedulers, run the
+ * benchmarks once with each. They are run by
+ * <tt>ThreadedKernel.selfTest()</tt> if <tt>ThreadedKernel.benchmark</tt> is
+ * set to the number of operations each should do.
+ */
+public class Benchmark {
+    /**
+     * Run every benchmark and print the results.
+     *
+     * @param	count	the number of operations each benchmark does.
+     */
+    public static void run(final int count) {
+	Lib.assertTrue(count > 0);
+
+	String scheduler = ThreadedKernel.scheduler.getClass().getName();
+	System.out.println("benchmarks: " + count + " operations each, "
+			   + scheduler.substring(scheduler.lastIndexOf('.')+1));
+
+	measure("fork+join", count, new Runnable() {
+		public void run() { forkJoin(count); }
+	    });
+	measure("yield", 2*count, new Runnable() {
+		public void run() { yieldPingPong(count); }
+	    });
+	measure("semaphore round trip", count, new Runnable() {
+		public void run() { semaphorePingPong(count); }
+	    });
+	measure("contended lock", count, new Runnable() {
+		public void run() { lockContention(count); }
+	    });
+	measure("condition wake", 2*count, new Runnable() {
+		public void run() { conditionPingPong(count); }
+	    });
+	measure("communicator word", count, new Runnable() {
+		public void run() { communicatorTransfer(count); }
+	    });
+	measure("fork per task", count, new Runnable() {
+		public void run() { forkPerTask(count); }
+	    });
+	measure("executor task", count, new Runnable() {
+		public void run() { executorTasks(count); }
+	    });
+	measure("donation stress", count, new Runnable() {
+		public void run() { donationStress(count); }
+	    });
+	measure("crowded queue", count, new Runnable() {
+		public void run() { crowdedQueue(count); }
+	    });
+	measure("share decision", count, new Runnable() {
+		public void run() { shareDecisions(count); }
+	    });
+	System.out.println(String.format(
+	    "%-22s %8.1f choices off a thread's share, at worst",
+	    "share error", shareError));
+    }
+
+    /**
+     * Run one benchmark in the current thread, and print the simulated ticks,
+     * context switches and host nanoseconds per operation.
+     */
+    private static void measure(String name, int operations,
+				Runnable benchmark) {
+	Metrics.Counter switches =
+	    Machine.metrics().counter("threads.contextSwitches");
+
+	long startSwitches = switches.get();
+	long startTicks = Machine.timer().getTime();
+	long startNanos = System.nanoTime();
+
+	benchmark.run();
+
+	long nanos = System.nanoTime() - startNanos;
+	long ticks = Machine.timer().getTime() - startTicks;
+
+	System.out.println(String.format(
+	    "%-22s %8d ops, %8.1f ticks/op, %5.2f switches/op, %8d ns/op",
+	    name, operations, (double) ticks / operations,
+	    (double) (switches.get() - startSwitches) / operations,
+	    nanos / operations));
+    }
+
+    /**
+     * Fork a thread that does nothing and join it, <i>count</i> times.
+     */
+    private static void forkJoin(int count) {
+	Runnable nothing = new Runnable() {
+		public void run() { }
+	    };
+
+	for (int i=0; i<count; i++) {
+	    KThread child = new KThread(nothing).setName("fork+join");
+	    child.fork();
+	    child.join();
+	}
+    }
+
+    /**
+     * Two threads yield to each other <i>count</i> times each.
+     */
+    private static void yieldPingPong(final int count) {
+	KThread partner = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<count; i++)
+			KThread.yield();
+		}
+	    }).setName("yield");
+
+	partner.fork();
+	for (int i=0; i<count; i++)
+	    KThread.yield();
+	partner.join();
+    }
+
+    /**
+     * Pass control back and forth between two threads <i>count</i> times,
+     * using a semaphore in each direction.
+     */
+    private static void semaphorePingPong(final int count) {
+	final Semaphore ping = new Semaphore(0);
+	final Semaphore pong = new Semaphore(0);
+
+	KThread partner = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<count; i++) {
+			ping.P();
+			pong.V();
+		    }
+		}
+	    }).setName("semaphore");
+
+	partner.fork();
+	for (int i=0; i<count; i++) {
+	    ping.V();
+	    pong.P();
+	}
+	partner.join();
+    }
+
+    /**
+     * Acquire and release a lock <i>count</i> times in all, from
+     * <tt>lockThreads</tt> threads. Each thread yields while it holds the
+     * lock, so the others find it held and have to wait for it.
+     */
+    private static void lockContention(int count) {
+	final Lock lock = new Lock();
+	KThread[] threads = new KThread[lockThreads];
+
+	for (int i=0; i<lockThreads; i++) {
+	    final int acquires = count/lockThreads +
+		(i < count%lockThreads ? 1 : 0);
+
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<acquires; j++) {
+			    lock.acquire();
+			    KThread.yield();
+			    lock.release();
+			}
+		    }
+		}).setName("lock " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<lockThreads; i++)
+	    threads[i].join();
+    }
+
+    /**
+     * Two threads take turns <i>count</i> times each, each sleeping on a
+     * condition variable until the other wakes it.
+     */
+    private static void conditionPingPong(final int count) {
+	final Lock lock = new Lock();
+	final Condition2 turnChanged = new Condition2(lock);
+	final int[] turn = new int[1];
+
+	KThread partner = new KThread(new Runnable() {
+		public void run() {
+		    takeTurns(lock, turnChanged, turn, 1, count);
+		}
+	    }).setName("condition");
+
+	partner.fork();
+	takeTurns(lock, turnChanged, turn, 0, count);
+	partner.join();
+    }
+
+    private static void takeTurns(Lock lock, Condition2 turnChanged,
+				  int[] turn, int me, int count) {
+	lock.acquire();
+	for (int i=0; i<count; i++) {
+	    while (turn[0] != me)
+		turnChanged.sleep();
+
+	    turn[0] = 1-me;
+	    turnChanged.wake();
+	}
+	lock.release();
+    }
+
+    /**
+     * Send <i>count</i> words from one thread to another through a
+     * communicator.
+     */
+    private static void communicatorTransfer(final int count) {
+	final Communicator communicator = new Communicator();
+
+	KThread speaker = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<count; i++)
+			communicator.speak(i);
+		}
+	    }).setName("speaker");
+
+	speaker.fork();
+	for (int i=0; i<count; i++)
+	    Lib.assertTrue(communicator.listen() == i);
+	speaker.join();
+    }
+
+    /**
+     * Run <i>count</i> empty tasks, each in its own thread. The tasks are
+     * forked <tt>taskBatch</tt> at a time, and each batch is joined before
+     * the next is forked.
+     */
+    private static void forkPerTask(int count) {
+	Runnable task = new Runnable() {
+		public void run() { }
+	    };
+
+	KThread[] threads = new KThread[taskBatch];
+	for (int done=0; done<count; done+=taskBatch) {
+	    int batch = Math.min(taskBatch, count-done);
+
+	    for (int i=0; i<batch; i++) {
+		threads[i] = new KThread(task).setName("task");
+		threads[i].fork();
+	    }
+	    for (int i=0; i<batch; i++)
+		threads[i].join();
+	}
+    }
+
+    /**
+     * Run <i>count</i> empty tasks with an executor of
+     * <tt>executorWorkers</tt> threads, in batches as in
+     * <tt>forkPerTask()</tt>. Starting and stopping the executor is included.
+     */
+    private static void executorTasks(int count) {
+	Runnable task = new Runnable() {
+		public void run() { }
+	    };
+
+	Executor executor = new Executor(executorWorkers);
+
+	Executor.Future<?>[] futures = new Executor.Future<?>[taskBatch];
+	for (int done=0; done<count; done+=taskBatch) {
+	    int batch = Math.min(taskBatch, count-done);
+
+	    for (int i=0; i<batch; i++)
+		futures[i] = executor.submit(task);
+	    for (int i=0; i<batch; i++)
+		futures[i].get();
+	}
+
+	executor.shutdown();
+    }
+
+    /**
+     * Change the priority of a random thread waiting at the end of a chain of
+     * <tt>chainDepth</tt> queues that transfer priority, <i>count</i> times.
+     * Each queue in the chain is held by a thread waiting on the next one,
+     * and <tt>chainWaiters</tt> threads wait on the last. The threads are
+     * never forked; only the scheduler's queues are exercised.
+     */
+    private static void donationStress(int count) {
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	java.util.Random random = new java.util.Random(0);
+
+	KThread[] chain = new KThread[chainDepth];
+	ThreadQueue[] queues = new ThreadQueue[chainDepth];
+	KThread[] waiters = new KThread[chainWaiters];
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<chainDepth; i++) {
+	    chain[i] = new KThread().setName("chain " + i);
+	    queues[i] = scheduler.newThreadQueue(true);
+	    queues[i].acquire(chain[i]);
+	    if (i > 0)
+		queues[i-1].waitForAccess(chain[i]);
+	}
+
+	for (int i=0; i<chainWaiters; i++) {
+	    waiters[i] = new KThread().setName("waiter " + i);
+	    queues[chainDepth-1].waitForAccess(waiters[i]);
+	}
+
+	for (int i=0; i<count; i++) {
+	    scheduler.setPriority(waiters[random.nextInt(chainWaiters)],
+				  1 + random.nextInt(maxPriority));
+	}
+
+	for (int i=chainDepth-1; i>=0; i--) {
+	    while (queues[i].nextThread() != null)
+		;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Take the next thread from a queue of <tt>crowdThreads</tt> threads of
+     * random priorities, and put it back, <i>count</i> times, as the ready
+     * queue does when threads yield. The threads are never forked.
+     */
+    private static void crowdedQueue(int count) {
+	Scheduler scheduler = ThreadedKernel.scheduler;
+	java.util.Random random = new java.util.Random(0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	for (int i=0; i<crowdThreads; i++) {
+	    KThread thread = new KThread().setName("crowd " + i);
+	    scheduler.setPriority(thread, 1 + random.nextInt(maxPriority));
+	    queue.waitForAccess(thread);
+	}
+
+	for (int i=0; i<count; i++)
+	    queue.waitForAccess(queue.nextThread());
+
+	while (queue.nextThread() != null)
+	    ;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Take the next thread from a queue of threads with priorities 1 to
+     * <tt>maxPriority</tt>, and put it back, <i>count</i> times. Afterwards,
+     * <tt>shareError</tt> is the furthest any thread got, at any point, from
+     * having been chosen in proportion to its priority.
+     */
+    private static void shareDecisions(int count) {
+	Scheduler scheduler = ThreadedKernel.scheduler;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[maxPriority];
+	long[] wins = new long[maxPriority];
+	long totalShares = 0;
+	for (int i=0; i<maxPriority; i++) {
+	    threads[i] = new KThread().setName("share " + (i+1));
+	    scheduler.setPriority(threads[i], i+1);
+	    queue.waitForAccess(threads[i]);
+	    totalShares += i+1;
+	}
+
+	long worst = 0;
+	for (int i=1; i<=count; i++) {
+	    KThread next = queue.nextThread();
+	    for (int j=0; j<maxPriority; j++) {
+		if (threads[j] == next)
+		    wins[j]++;
+		worst = Math.max(worst,
+				 Math.abs(wins[j]*totalShares - (long) i*(j+1)));
+	    }
+	    queue.waitForAccess(next);
+	}
+	shareError = (double) worst / totalShares;
+
+	while (queue.nextThread() != null)
+	    ;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** The result of the last <tt>shareDecisions()</tt>. */
+    private static double shareError;
+
+    /** The number of threads competing in the lock benchmark. */
+    private static final int lockThreads = 4;
+    /** The number of tasks started before waiting for them to finish. */
+    private static final int taskBatch = 100;
+    /** The number of threads in the executor benchmark. */
+    private static final int executorWorkers = 4;
+    /** The length of the chain of donations in the stress benchmark. */
+    private static final int chainDepth = 100;
+    /** The number of threads waiting at the end of the chain. */
+    private static final int chainWaiters = 2000;
+    /** The number of threads in the crowded queue. */
+    private static final int crowdThreads = 1000;
+    /**
+     * The highest priority the stress benchmarks give a thread; the lowest is
+     * 1. Valid for the priority, lottery and stride schedulers.
+     */
+    private static final int maxPriority = 7;
+}
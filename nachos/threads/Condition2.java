@@ -42,6 +42,7 @@ public class Condition2 {
 		conditionLock.release();
 
 		//Add the current thread to the waitQueue and put it to sleep
+		WaitForGraph.waitFor(this);
 		waitQueue.add(KThread.currentThread());
 		KThread.sleep();
 	
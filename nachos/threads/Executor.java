@@ -0,0 +1,205 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+
+/**
+ * A fixed pool of worker threads that run short kernel tasks, such as
+ * deferred closes or generating network replies, without forking a thread
+ * (and creating a TCB) for each one. Tasks are run in the order they were
+ * submitted, as workers become free. Each task has a <tt>Future</tt> that
+ * other threads can use to wait for it to finish and get its result.
+ *
+ * <p>
+ * A task must not wait for a task submitted after it, since every worker may
+ * be busy with tasks that are waiting.
+ */
+public class Executor {
+    /**
+     * Allocate a new executor, and fork its worker threads.
+     *
+     * @param	numWorkers	the number of worker threads.
+     */
+    public Executor(int numWorkers) {
+	Lib.assertTrue(numWorkers > 0);
+
+	workers = new KThread[numWorkers];
+	for (int i=0; i<numWorkers; i++) {
+	    workers[i] = new KThread(new Runnable() {
+		    public void run() { runTasks(); }
+		}).setName("executor worker " + i);
+	    workers[i].fork();
+	}
+    }
+
+    /**
+     * Submit a task that returns nothing. <tt>get()</tt> on its future
+     * returns <tt>null</tt>.
+     *
+     * @param	task	the task to run.
+     * @return	the future of the task.
+     */
+    public Future<Object> submit(final Runnable task) {
+	return submit(new Callable<Object>() {
+		public Object call() {
+		    task.run();
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Submit a task that returns a result.
+     *
+     * @param	task	the task to run.
+     * @return	the future of the task.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+	Future<T> future = new Future<T>(task);
+
+	lock.acquire();
+	Lib.assertTrue(!shuttingDown);
+
+	queue.add(future);
+	if (numIdle > 0) {
+	    numIdle--;
+	    taskAvailable.wake();
+	}
+
+	lock.release();
+
+	return future;
+    }
+
+    /**
+     * Run the tasks already submitted, and then stop the worker threads.
+     * Returns when every worker has finished. Must not be called from a task.
+     */
+    public void shutdown() {
+	lock.acquire();
+	shuttingDown = true;
+	numIdle = 0;
+	taskAvailable.wakeAll();
+	lock.release();
+
+	for (int i=0; i<workers.length; i++)
+	    workers[i].join();
+    }
+
+    /**
+     * The loop run by each worker thread: take the first task off the queue
+     * and run it, until the queue is empty and the executor is shutting down.
+     * The lock is acquired once per task, both to finish the previous task
+     * and to take the next.
+     */
+    private void runTasks() {
+	Future<?> future = null;
+
+	lock.acquire();
+	while (true) {
+	    if (future != null)
+		future.finish();
+
+	    while (queue.isEmpty() && !shuttingDown) {
+		numIdle++;
+		taskAvailable.sleep();
+	    }
+
+	    if (queue.isEmpty())
+		break;
+
+	    future = queue.removeFirst();
+	    lock.release();
+
+	    future.run();
+
+	    lock.acquire();
+	}
+	lock.release();
+    }
+
+    /**
+     * The pending result of a submitted task.
+     */
+    public class Future<T> {
+	private Future(Callable<T> task) {
+	    this.task = task;
+	}
+
+	/**
+	 * Test whether the task has finished.
+	 *
+	 * @return	<tt>true</tt> if the task has run.
+	 */
+	public boolean isDone() {
+	    return done;
+	}
+
+	/**
+	 * Wait for the task to finish, and return its result. If the task threw
+	 * an exception, throw a <tt>RuntimeException</tt> caused by it.
+	 *
+	 * @return	the value the task returned.
+	 */
+	public T get() {
+	    if (!done) {
+		lock.acquire();
+		while (!done) {
+		    numWaiting++;
+		    finished.sleep();
+		}
+		lock.release();
+	    }
+
+	    if (failure != null)
+		throw new RuntimeException("task failed", failure);
+
+	    return result;
+	}
+
+	/**
+	 * Run the task, without holding the lock.
+	 */
+	private void run() {
+	    try {
+		result = task.call();
+	    }
+	    catch (Exception e) {
+		failure = e;
+	    }
+	}
+
+	/**
+	 * Mark the task finished, and wake the threads waiting for it. The
+	 * lock must be held.
+	 */
+	private void finish() {
+	    done = true;
+	    task = null;
+
+	    if (numWaiting > 0) {
+		numWaiting = 0;
+		finished.wakeAll();
+	    }
+	}
+
+	private Callable<T> task;
+	private Condition2 finished = new Condition2(lock);
+	private int numWaiting = 0;
+	private boolean done = false;
+	private T result = null;
+	private Exception failure = null;
+    }
+
+    private KThread[] workers;
+
+    /** Protects the queue and the state of every future. */
+    private Lock lock = new Lock();
+    private Condition2 taskAvailable = new Condition2(lock);
+    private LinkedList<Future<?>> queue = new LinkedList<Future<?>>();
+    /** The number of workers waiting for a task and not yet woken. */
+    private int numIdle = 0;
+    private boolean shuttingDown = false;
+}
@@ -1,7 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.ArrayList;
 
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
@@ -48,6 +47,12 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
+	    Machine.metrics().gauge("threads.created", new Metrics.Gauge() {
+		    public long value() { return numCreated; }
+		});
+	    numContextSwitches =
+		Machine.metrics().counter("threads.contextSwitches");
+
 	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	    readyQueue.acquire(this);	    
 
@@ -145,6 +150,9 @@ public class KThread {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	// this thread holds its join queue, so that joiners donate priority
+	threadsToBeJoined.acquire(this);
+
 	tcb.start(new Runnable() {
 		public void run() {
 		    runThread();
@@ -271,6 +279,7 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
+	waitingFor = null;
 	if (this != idleThread)
 	    readyQueue.waitForAccess(this);
 	
@@ -288,34 +297,29 @@ public class KThread {
     	//If the target has already finished; do not allow a join
 		if(status == statusFinished)
 			Lib.debug(KThreadTestChar, "Blocked, attempting to join a finished thread. Thread: " + toString());
-			
-		//If the target is joined to the current thread via cyclical dependencies, do not allow a join
-		else if(currentThread.joinedIDs.contains(this.id)){
-			Lib.debug(KThreadTestChar, "Blocked, cyclical joining. Thread: " + toString());
-		}
 		else{
 			//Ensure that the method is called by another active thread
 			Lib.assertTrue(this != currentThread);
 			Lib.debug(dbgThread, "Joining to thread: " + toString());
 			
-			//Fill this.joinedIDs with the respective thread IDs to prevent cyclical joining.
-			this.joinedIDs.add(currentThread.id);
-			for(int i = 0; i < currentThread.joinedIDs.size(); i++){
-				this.joinedIDs.add(currentThread.joinedIDs.get(i));
-			}
-			
 			//Save the current interrupt status and disable system interrupts
 			boolean interruptStatus = Machine.interrupt().disable();
 			
-			//If this thread is new it gets readied
-			if(status == statusNew)
-				ready();
+			//If the target is waiting for the current thread via cyclical dependencies, do not allow a join
+			if(!WaitForGraph.waitFor(this)){
+				Lib.debug(KThreadTestChar, "Blocked, cyclical joining:" + WaitForGraph.describeCycle(this));
+			}
+			else{
+				//If this thread is new it gets readied
+				if(status == statusNew)
+					ready();
 				
-			//The thread is then added to the ThreadQueue to wait for execution
-			threadsToBeJoined.waitForAccess(currentThread);
+				//The thread is then added to the ThreadQueue to wait for execution
+				threadsToBeJoined.waitForAccess(currentThread);
 			
-			//And put to sleep until it's turn on the ThreadQueue
-			sleep();
+				//And put to sleep until it's turn on the ThreadQueue
+				sleep();
+			}
 
 			//Restore interrupts
 			Machine.interrupt().restore(interruptStatus);
@@ -346,12 +350,17 @@ public class KThread {
     
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
-     * using <tt>run()</tt>.
+     * using <tt>run()</tt>. If only the idle thread can run, simulated time
+     * first skips ahead to the next interrupt (see
+     * <tt>Interrupt.idle()</tt>).
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
+	    // only the idle thread can run, so skip to the next interrupt
+	    Machine.interrupt().idle();
 	    nextThread = idleThread;
+	}
 
 	nextThread.run();
     }
@@ -386,6 +395,9 @@ public class KThread {
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
+	if (this != currentThread)
+	    numContextSwitches.increment();
+
 	currentThread = this;
 
 	tcb.contextSwitch();
@@ -600,6 +612,13 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The resource this thread is blocked on, or <tt>null</tt>.
+     *
+     * @see	nachos.threads.WaitForGraph
+     */
+    Object waitingFor = null;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -623,6 +642,8 @@ public class KThread {
     private int id = numCreated++;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
+    /** Number of times <tt>run()</tt> switched to a different thread. */
+    private static Metrics.Counter numContextSwitches;
 
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
@@ -630,5 +651,4 @@ public class KThread {
     private static KThread idleThread = null;
 
 	private ThreadQueue threadsToBeJoined = ThreadedKernel.scheduler.newThreadQueue(true);
-	private ArrayList<Integer> joinedIDs = new ArrayList<Integer>();
 }
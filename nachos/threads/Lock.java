@@ -37,6 +37,11 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    if (!WaitForGraph.waitFor(this)) {
+		Lib.assertNotReached("deadlock:" +
+				     WaitForGraph.describeCycle(this));
+	    }
+
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
@@ -73,6 +78,15 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Return the thread holding this lock.
+     *
+     * @return	the thread holding this lock, or <tt>null</tt> if it is free.
+     */
+    KThread getHolder() {
+	return lockHolder;
+    }
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,14 +21,22 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, adding or removing a thread, and changing a thread's
+ * tickets each take time logarithmic in the number of threads waiting. The
+ * winning ticket is drawn with <tt>Lib.random()</tt>, so the choices are the
+ * same every time Nachos is run with the same seed. Tickets are donated as
+ * described in <tt>TicketScheduler</tt>.
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends TicketScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +46,265 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    /**
+     * Test whether this module is working: over many lotteries each thread
+     * wins in proportion to its tickets, and tickets donated through a chain
+     * of locks add up, even past what an <tt>int</tt> can hold.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	// each thread wins in proportion to its tickets
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[3];
+	int[] tickets = { 1, 3, 6 };
+	int[] wins = new int[3];
+	for (int i=0; i<3; i++) {
+	    threads[i] = new KThread().setName("lottery test " + i);
+	    scheduler.setPriority(threads[i], tickets[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+	for (int i=0; i<10000; i++) {
+	    KThread winner = queue.nextThread();
+	    for (int j=0; j<3; j++) {
+		if (winner == threads[j])
+		    wins[j]++;
+	    }
+	    queue.waitForAccess(winner);
+	}
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(Math.abs(wins[i] - tickets[i]*1000) < 300);
+	for (int i=0; i<3; i++)
+	    queue.nextThread();
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// donations add up along a chain: low holds lock1, middle holds lock2
+	// and waits for lock1, and two threads wait for lock2
+	KThread low = new KThread().setName("low");
+	KThread middle = new KThread().setName("middle");
+	KThread high1 = new KThread().setName("high 1");
+	KThread high2 = new KThread().setName("high 2");
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+	lock1.acquire(low);
+	lock2.acquire(middle);
+	lock1.waitForAccess(middle);
+	scheduler.setPriority(high1, 5);
+	scheduler.setPriority(high2, 10);
+	lock2.waitForAccess(high1);
+	lock2.waitForAccess(high2);
+	Lib.assertTrue(scheduler.getEffectivePriority(middle) == 16);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 17);
+
+	// far more tickets than an int can hold
+	scheduler.setPriority(high1, priorityMaximum);
+	scheduler.setPriority(high2, priorityMaximum);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == priorityMaximum);
+	scheduler.setPriority(high1, 5);
+	scheduler.setPriority(high2, 10);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 17);
+
+	// releasing moves the donation to the new holder
+	KThread next = lock2.nextThread();
+	Lib.assertTrue(scheduler.getEffectivePriority(middle) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(next) ==
+		       scheduler.getPriority(next) + (next == high1 ? 10 : 5));
+	lock2.nextThread();
+	Lib.assertTrue(lock1.nextThread() == middle);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    protected TicketState newTicketState(KThread thread) {
+	return new LotteryState(thread);
+    }
+
+    private LotteryState getLotteryState(KThread thread) {
+	return (LotteryState) getTicketState(thread);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * The tickets of each waiting thread are kept in a slot of a Fenwick
+     * tree; the slots of threads that have left are reused.
+     */
+    protected class LotteryQueue extends TicketQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+
+	    grow(initialCapacity);
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (size == capacity)
+		grow(capacity*2);
+
+	    state.waitingOn = this;
+	    state.slot = free[capacity - size - 1];
+	    slots[state.slot] = state;
+	    size++;
+
+	    change(state.slot, state.effectiveTickets);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState winner = pickNextThread();
+	    if (winner != null) {
+		change(winner.slot, -winner.effectiveTickets);
+
+		slots[winner.slot] = null;
+		free[capacity - size] = winner.slot;
+		size--;
+		winner.waitingOn = null;
+	    }
+
+	    setHolder(winner);
+
+	    return (winner != null) ? winner.thread : null;
+	}
+
+	/**
+	 * Hold a lottery, and return the thread holding the winning ticket,
+	 * without removing it.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if the queue is
+	 *		empty.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) totalTickets);
+	    else
+		ticket = Math.min((long) (Lib.random() * totalTickets),
+				  totalTickets-1);
+
+	    // find the slot whose range of tickets holds the winning one
+	    int slot = 0;
+	    for (int step=capacity; step>0; step>>=1) {
+		if (tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+
+	    return slots[slot];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<capacity; i++) {
+		if (slots[i] != null) {
+		    System.out.print(slots[i].thread + " ["
+				     + slots[i].effectiveTickets + "] ");
+		}
+	    }
+	}
+
+	/**
+	 * Change the tickets in a slot, and the tickets donated to the holder.
+	 *
+	 * @param	slot	the slot of a waiting thread.
+	 * @param	delta	the change in its tickets.
+	 */
+	void change(int slot, long delta) {
+	    for (int i=slot+1; i<=capacity; i+=(i & -i))
+		tree[i] += delta;
+
+	    changeTickets(delta);
+	}
+
+	private void grow(int newCapacity) {
+	    LotteryState[] newSlots = new LotteryState[newCapacity];
+	    int[] newFree = new int[newCapacity];
+	    long[] newTree = new long[newCapacity+1];
+
+	    if (slots != null)
+		System.arraycopy(slots, 0, newSlots, 0, capacity);
+
+	    // the new slots are free, and are used lowest first
+	    int numFree = 0;
+	    for (int slot=newCapacity-1; slot>=capacity; slot--)
+		newFree[numFree++] = slot;
+	    if (free != null)
+		System.arraycopy(free, 0, newFree, numFree, capacity - size);
+
+	    // rebuild the tree in linear time
+	    for (int i=1; i<=newCapacity; i++) {
+		if (newSlots[i-1] != null)
+		    newTree[i] += newSlots[i-1].effectiveTickets;
+
+		int parent = i + (i & -i);
+		if (parent <= newCapacity)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    slots = newSlots;
+	    free = newFree;
+	    tree = newTree;
+	    capacity = newCapacity;
+	}
+
+	/** The number of slots; always a power of two. */
+	private int capacity = 0;
+	private int size = 0;
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] slots = null;
+	/** A stack of the slots not in use, top at the highest index. */
+	private int[] free = null;
+	/** The Fenwick tree of tickets; slot <i>i</i> is node <i>i</i>+1. */
+	private long[] tree = null;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler: the queue it
+     * is waiting on, if any, and its slot there.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState extends TicketState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    super(thread);
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Change the slot of the associated thread in the queue it is waiting
+	 * on.
+	 */
+	void effectiveTicketsChanged(long delta) {
+	    if (waitingOn != null)
+		waitingOn.change(slot, delta);
+	}
+
+	/** The queue the associated thread is waiting on, or <tt>null</tt>. */
+	LotteryQueue waitingOn = null;
+	/** Its slot in <tt>waitingOn</tt>. */
+	int slot;
     }
+
+    private static final int initialCapacity = 4;
 }
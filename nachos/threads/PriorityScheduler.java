@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +22,17 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps a FIFO of waiting threads for every priority level, and a
+ * bitmap of the levels that are not empty, so the next thread is found with
+ * one bit operation, and every change to a queue takes constant time. A
+ * thread whose effective priority changes while it waits moves to the back
+ * of the FIFO for its new priority, as if it had just started waiting. Each
+ * thread caches its effective priority, and counts the priorities donated to
+ * it by the queues it holds; when a waiting thread's effective priority
+ * changes, the change is passed along the chain of holders only as far as it
+ * changes their effective priorities.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -72,8 +80,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +97,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -96,6 +108,71 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Test whether this module is working: threads leave in order of
+     * priority and FIFO within a priority, a thread whose priority changes
+     * goes to the back of its new priority, and donations follow a chain of
+     * locks, take the highest of the queues a thread holds, and end when a
+     * lock is released.
+     */
+    public static void selfTest() {
+	PriorityScheduler scheduler = new PriorityScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	// highest priority first, and FIFO within a priority
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[4];
+	for (int i=0; i<4; i++) {
+	    threads[i] = new KThread().setName("priority test " + i);
+	    scheduler.setPriority(threads[i], (i%2 == 0) ? 1 : 3);
+	    queue.waitForAccess(threads[i]);
+	}
+	// a thread raised to a busier priority joins the back of the line
+	scheduler.setPriority(threads[2], 3);
+	Lib.assertTrue(queue.nextThread() == threads[1]);
+	Lib.assertTrue(queue.nextThread() == threads[3]);
+	Lib.assertTrue(queue.nextThread() == threads[2]);
+	Lib.assertTrue(queue.nextThread() == threads[0]);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// donation along a chain: low holds lock1, middle holds lock2 and
+	// waits for lock1, and high waits for lock2
+	KThread low = new KThread().setName("low");
+	KThread middle = new KThread().setName("middle");
+	KThread high = new KThread().setName("high");
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+	lock1.acquire(low);
+	lock2.acquire(middle);
+	lock1.waitForAccess(middle);
+	scheduler.setPriority(high, 7);
+	lock2.waitForAccess(high);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 7);
+	Lib.assertTrue(scheduler.getEffectivePriority(middle) == 7);
+
+	scheduler.setPriority(high, 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 2);
+
+	// a thread holding two queues gets the higher donation
+	ThreadQueue lock3 = scheduler.newThreadQueue(true);
+	KThread other = new KThread().setName("other");
+	scheduler.setPriority(other, 5);
+	lock3.acquire(low);
+	lock3.waitForAccess(other);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 5);
+	Lib.assertTrue(lock3.nextThread() == other);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 2);
+
+	// releasing ends the donation
+	Lib.assertTrue(lock2.nextThread() == high);
+	Lib.assertTrue(scheduler.getEffectivePriority(middle) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+	Lib.assertTrue(lock1.nextThread() == middle);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -142,8 +219,18 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    int oldTop = topPriority();
+
+	    if (next != null) {
+		remove(next);
+		next.waitingOn = null;
+	    }
+
+	    setHolder(next, oldTop);
+
+	    return (next != null) ? next.thread : null;
 	}
 
 	/**
@@ -154,13 +241,104 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int top = topPriority();
+	    return (top >= 0) ? heads[top] : null;
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(s.thread + " [" + level + "] ");
+	    }
+	}
+
+	/**
+	 * Return the highest effective priority of any thread waiting on this
+	 * queue.
+	 *
+	 * @return	the highest priority waiting, or -1 if the queue is
+	 *		empty.
+	 */
+	int topPriority() {
+	    return 31 - Integer.numberOfLeadingZeros(levels);
+	}
+
+	/**
+	 * Add a thread to the back of the FIFO for its effective priority.
+	 */
+	void add(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    state.prev = tails[level];
+	    state.next = null;
+	    if (state.prev != null)
+		state.prev.next = state;
+	    else
+		heads[level] = state;
+	    tails[level] = state;
+
+	    levels |= 1 << level;
+	}
+
+	/**
+	 * Remove a thread from the FIFO for its effective priority.
+	 */
+	void remove(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    if (state.prev != null)
+		state.prev.next = state.next;
+	    else
+		heads[level] = state.next;
+	    if (state.next != null)
+		state.next.prev = state.prev;
+	    else
+		tails[level] = state.prev;
+
+	    state.prev = state.next = null;
+
+	    if (heads[level] == null)
+		levels &= ~(1 << level);
+	}
+
+	/**
+	 * Give access to the specified thread. If this queue transfers
+	 * priority, the previous holder stops receiving the priority it was
+	 * donated, and the new holder receives the current top priority.
+	 *
+	 * @param	newHolder	the thread with access, or <tt>null</tt>.
+	 * @param	oldTop		the top priority that was donated to the
+	 *				previous holder.
+	 */
+	void setHolder(ThreadState newHolder, int oldTop) {
+	    if (transferPriority && holder != null) {
+		holder.changeDonation(oldTop, -1);
+		holder.updateEffectivePriority();
+	    }
+
+	    holder = newHolder;
+
+	    if (transferPriority && holder != null) {
+		holder.changeDonation(-1, topPriority());
+		holder.updateEffectivePriority();
+	    }
+	}
+
+	/**
+	 * The top priority of this queue has changed, so change the priority
+	 * donated to the holder, if this queue transfers priority.
+	 *
+	 * @param	oldTop	the top priority before the change.
+	 */
+	void topChanged(int oldTop) {
+	    int newTop = topPriority();
+
+	    if (transferPriority && holder != null && newTop != oldTop) {
+		holder.changeDonation(oldTop, newTop);
+		holder.updateEffectivePriority();
+	    }
 	}
 
 	/**
@@ -168,6 +346,14 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that has access, or <tt>null</tt>. */
+	ThreadState holder = null;
+	/** The first and last waiting thread at each priority. */
+	private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** A bit for each priority with a thread waiting. */
+	private int levels = 0;
     }
 
     /**
@@ -205,8 +391,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +405,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +421,14 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    int oldTop = waitQueue.topPriority();
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+
+	    waitQueue.topChanged(oldTop);
 	}
 
 	/**
@@ -250,12 +442,78 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (waitQueue.holder != this)
+		waitQueue.setHolder(this, waitQueue.topPriority());
 	}	
 
+	/**
+	 * Recompute the effective priority of the associated thread, and if it
+	 * changed, move the thread within the queue it is waiting on, and
+	 * change the priority that queue donates to its holder. Repeats along
+	 * the chain of holders until an effective priority does not change.
+	 */
+	void updateEffectivePriority() {
+	    for (ThreadState state = this; state != null; ) {
+		int effective = Math.max(state.priority,
+					 31 - Integer.numberOfLeadingZeros(
+					     state.donatedLevels));
+		if (effective == state.effectivePriority)
+		    return;
+
+		PriorityQueue waitQueue = state.waitingOn;
+		if (waitQueue == null) {
+		    state.effectivePriority = effective;
+		    return;
+		}
+
+		int oldTop = waitQueue.topPriority();
+
+		waitQueue.remove(state);
+		state.effectivePriority = effective;
+		waitQueue.add(state);
+
+		if (!waitQueue.transferPriority || waitQueue.holder == null ||
+		    waitQueue.topPriority() == oldTop)
+		    return;
+
+		waitQueue.holder.changeDonation(oldTop,
+						waitQueue.topPriority());
+		state = waitQueue.holder;
+	    }
+	}
+
+	/**
+	 * Replace one priority donated to the associated thread by a queue it
+	 * holds with another. Does not update the effective priority.
+	 *
+	 * @param	oldPriority	the priority donated before, or -1.
+	 * @param	newPriority	the priority donated now, or -1.
+	 */
+	void changeDonation(int oldPriority, int newPriority) {
+	    if (oldPriority >= 0 && --numDonated[oldPriority] == 0)
+		donatedLevels &= ~(1 << oldPriority);
+	    if (newPriority >= 0 && numDonated[newPriority]++ == 0)
+		donatedLevels |= 1 << newPriority;
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority = -1;
+
+	/**
+	 * The number of queues held by the associated thread that donate each
+	 * priority to it.
+	 */
+	private int[] numDonated = new int[priorityMaximum+1];
+	/** A bit for each priority donated by at least one queue. */
+	private int donatedLevels = 0;
+
+	/** The queue the associated thread is waiting on, or <tt>null</tt>. */
+	PriorityQueue waitingOn = null;
+	/** The neighbours of the thread in its FIFO in <tt>waitingOn</tt>. */
+	ThreadState prev = null, next = null;
     }
 }
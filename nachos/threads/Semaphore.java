@@ -38,6 +38,7 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    WaitForGraph.waitFor(this);
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
 	}
@@ -0,0 +1,458 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.math.BigInteger;
+import java.util.WeakHashMap;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to their
+ * tickets, deterministically.
+ *
+ * <p>
+ * Each thread has a <i>stride</i> inversely proportional to its tickets, and
+ * a <i>pass</i>. The thread with the lowest pass is dequeued first, and its
+ * pass then advances by its stride, so over any period each thread is chosen
+ * in proportion to its tickets, give or take one choice. Unlike a lottery,
+ * the shares are accurate even over short periods.
+ *
+ * <p>
+ * Each queue also has a global pass, which advances by the stride of all the
+ * tickets waiting each time a thread is dequeued. A thread that leaves a queue
+ * keeps the difference between its pass and that queue's global pass, and
+ * gets it back when it returns to the same queue, so it neither loses its
+ * place nor saves up a burst while it is away, however many other queues it
+ * waits on meanwhile. If its tickets changed while it was away, the
+ * difference is scaled by the change in its stride.
+ *
+ * <p>
+ * Tickets are donated as described in <tt>TicketScheduler</tt>. The queues
+ * are heaps ordered by pass, so choosing a thread and changing a thread's
+ * tickets take time logarithmic in the number of threads waiting.
+ */
+public class StrideScheduler extends TicketScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * Test whether this module is working: every prefix of a run of choices
+     * is within two of the exact shares, a thread that has been away does
+     * not catch up in a burst, waiting on another queue does not change its
+     * place in the first, new shares take effect at once, and tickets
+     * donated through a chain of locks add up.
+     */
+    public static void selfTest() {
+	StrideScheduler scheduler = new StrideScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	// every window of choices is shared in proportion to the tickets
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[3];
+	int[] tickets = { 1, 2, 3 };
+	int[] wins = new int[3];
+	for (int i=0; i<3; i++) {
+	    threads[i] = new KThread().setName("stride test " + i);
+	    scheduler.setPriority(threads[i], tickets[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+	for (int i=1; i<=600; i++) {
+	    KThread next = queue.nextThread();
+	    for (int j=0; j<3; j++) {
+		if (next == threads[j])
+		    wins[j]++;
+		Lib.assertTrue(Math.abs(wins[j]*6 - i*tickets[j]) <= 6*2);
+	    }
+	    queue.waitForAccess(next);
+	}
+
+	// a thread that leaves for a while does not get a burst on return
+	KThread away = queue.nextThread();
+	for (int i=0; i<100; i++)
+	    queue.waitForAccess(queue.nextThread());
+	queue.waitForAccess(away);
+	int awayWins = 0;
+	for (int i=0; i<12; i++) {
+	    KThread next = queue.nextThread();
+	    if (next == away)
+		awayWins++;
+	    queue.waitForAccess(next);
+	}
+	Lib.assertTrue(awayWins <= 12 * scheduler.getPriority(away) / 6 + 1);
+
+	// a thread returns to a queue where it left it, even if it has
+	// waited on another queue in between
+	away = queue.nextThread();
+	StrideState awayState = scheduler.getStrideState(away);
+	StrideQueue strideQueue = (StrideQueue) queue;
+	long remain = awayState.pass - strideQueue.globalPass;
+	ThreadQueue other = scheduler.newThreadQueue(false);
+	KThread rival = new KThread().setName("stride rival");
+	scheduler.setPriority(rival, 5);
+	other.waitForAccess(rival);
+	other.waitForAccess(away);
+	while (other.nextThread() != away)
+	    other.waitForAccess(rival);
+	queue.waitForAccess(away);
+	Lib.assertTrue(awayState.pass - strideQueue.globalPass == remain);
+
+	// a change of tickets changes the shares from then on
+	scheduler.setPriority(threads[0], 3);
+	scheduler.setPriority(threads[1], 3);
+	wins = new int[3];
+	for (int i=0; i<300; i++) {
+	    KThread next = queue.nextThread();
+	    for (int j=0; j<3; j++) {
+		if (next == threads[j])
+		    wins[j]++;
+	    }
+	    queue.waitForAccess(next);
+	}
+	for (int j=0; j<3; j++)
+	    Lib.assertTrue(Math.abs(wins[j] - 100) <= 2);
+	while (queue.nextThread() != null)
+	    ;
+
+	// donations add up along a chain
+	KThread low = new KThread().setName("low");
+	KThread middle = new KThread().setName("middle");
+	KThread high = new KThread().setName("high");
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+	lock1.acquire(low);
+	lock2.acquire(middle);
+	lock1.waitForAccess(middle);
+	scheduler.setPriority(high, 10);
+	lock2.waitForAccess(high);
+	Lib.assertTrue(scheduler.getEffectivePriority(middle) == 11);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 12);
+	Lib.assertTrue(lock2.nextThread() == high);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 2);
+	Lib.assertTrue(lock1.nextThread() == middle);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The stride of one ticket. Large, so that strides are accurate even for
+     * threads with many tickets.
+     */
+    private static final long stride1 = 1L << 32;
+
+    protected TicketState newTicketState(KThread thread) {
+	return new StrideState(thread);
+    }
+
+    private StrideState getStrideState(KThread thread) {
+	return (StrideState) getTicketState(thread);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass,
+     * and among those the one that has been waiting longest. The waiting
+     * threads are kept in a binary heap.
+     */
+    protected class StrideQueue extends TicketQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideState state = getStrideState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (size == heap.length) {
+		StrideState[] newHeap = new StrideState[heap.length*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    state.waitingOn = this;
+	    state.pass = globalPass + state.remainder(this);
+	    state.waitNumber = numWaits++;
+
+	    heap[size] = state;
+	    state.index = size++;
+	    siftUp(state.index);
+
+	    changeTickets(state.effectiveTickets);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideState next = pickNextThread();
+	    if (next != null) {
+		// one choice's worth of time passes for every waiting thread
+		globalPass += stride1 / totalTickets;
+
+		next.pass += next.stride;
+
+		remove(next);
+		next.leave(this);
+		changeTickets(-next.effectiveTickets);
+	    }
+
+	    setHolder(next);
+
+	    return (next != null) ? next.thread : null;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the waiting thread with the lowest pass, or
+	 *		<tt>null</tt> if the queue is empty.
+	 */
+	protected StrideState pickNextThread() {
+	    return (size > 0) ? heap[0] : null;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++) {
+		System.out.print(heap[i].thread + " [" + heap[i].pass + "] ");
+	    }
+	}
+
+	/**
+	 * A waiting thread's tickets changed, and with them its stride. Scale
+	 * the distance of its pass from the global pass by the change in its
+	 * stride, and move it in the heap.
+	 *
+	 * @param	state		the waiting thread.
+	 * @param	oldStride	its stride before the change.
+	 * @param	delta		the change in its tickets.
+	 */
+	void changeStride(StrideState state, long oldStride, long delta) {
+	    state.pass = globalPass +
+		scale(state.pass - globalPass, state.stride, oldStride);
+
+	    siftUp(state.index);
+	    siftDown(state.index);
+
+	    changeTickets(delta);
+	}
+
+	private void remove(StrideState state) {
+	    int i = state.index;
+
+	    heap[i] = heap[--size];
+	    heap[i].index = i;
+	    heap[size] = null;
+
+	    if (i < size) {
+		siftUp(i);
+		siftDown(heap[i].index);
+	    }
+
+	    state.waitingOn = null;
+	    state.index = -1;
+	}
+
+	private boolean before(StrideState state1, StrideState state2) {
+	    return state1.pass < state2.pass ||
+		(state1.pass == state2.pass &&
+		 state1.waitNumber < state2.waitNumber);
+	}
+
+	private void siftUp(int i) {
+	    StrideState state = heap[i];
+
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[i] = heap[parent];
+		heap[i].index = i;
+		i = parent;
+	    }
+
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	private void siftDown(int i) {
+	    StrideState state = heap[i];
+
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+
+		heap[i] = heap[child];
+		heap[i].index = i;
+		i = child;
+	    }
+
+	    heap[i] = state;
+	    state.index = i;
+	}
+
+	/** The pass of a thread that has had exactly its share. */
+	long globalPass = 0;
+
+	private StrideState[] heap = new StrideState[4];
+	private int size = 0;
+	/** The number of threads that have waited on this queue. */
+	private long numWaits = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a stride scheduler: its stride and
+     * pass, and the queue it is waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class StrideState extends TicketState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    super(thread);
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Recompute the stride of the associated thread, and update its pass
+	 * and the queue it is waiting on. That passes the change on to the
+	 * queue's holder.
+	 */
+	void effectiveTicketsChanged(long delta) {
+	    long oldStride = stride;
+
+	    stride = Math.max(stride1 / effectiveTickets, 1);
+
+	    if (waitingOn != null)
+		waitingOn.changeStride(this, oldStride, delta);
+	}
+
+	/**
+	 * Return the difference between the pass of the associated thread and
+	 * the global pass of the specified queue that it should start waiting
+	 * with: what it had when it last left the queue, scaled to its current
+	 * stride, or one stride if it has never left the queue.
+	 *
+	 * @param	queue	the queue it is about to wait on.
+	 */
+	long remainder(StrideQueue queue) {
+	    Remainder left;
+	    if (queue == lastQueue)
+		left = last;
+	    else if (remainders != null)
+		left = remainders.get(queue);
+	    else
+		left = null;
+
+	    if (left == null)
+		return stride;
+	    else if (left.stride == stride)
+		return left.remain;
+	    else
+		return scale(left.remain, stride, left.stride);
+	}
+
+	/**
+	 * Record the difference between the pass of the associated thread and
+	 * the global pass of the specified queue, which it has just left. The
+	 * queue it left last is kept out of <tt>remainders</tt>, so a thread
+	 * that only ever returns to the ready queue never looks one up.
+	 *
+	 * @param	queue	the queue it has left.
+	 */
+	void leave(StrideQueue queue) {
+	    if (queue != lastQueue) {
+		if (lastQueue != null) {
+		    if (remainders == null)
+			remainders = new WeakHashMap<StrideQueue, Remainder>();
+
+		    Remainder previous = last;
+		    last = remainders.remove(queue);
+		    remainders.put(lastQueue, previous);
+		    if (last == null)
+			last = new Remainder();
+		}
+
+		lastQueue = queue;
+	    }
+
+	    last.remain = pass - queue.globalPass;
+	    last.stride = stride;
+	}
+
+	/** The amount its pass advances each time it is chosen. */
+	protected long stride = 0;
+	/** Its pass, while it is waiting. */
+	protected long pass = 0;
+	/** The queue it left last, or <tt>null</tt>. */
+	private StrideQueue lastQueue = null;
+	/** What it had left on <tt>lastQueue</tt>. */
+	private Remainder last = new Remainder();
+	/**
+	 * What it had left on each other queue it has left, or <tt>null</tt>
+	 * if there are none. Queues that are no longer used are dropped.
+	 */
+	private WeakHashMap<StrideQueue, Remainder> remainders = null;
+
+	/** The queue the associated thread is waiting on, or <tt>null</tt>. */
+	StrideQueue waitingOn = null;
+	/** Its index in the heap of <tt>waitingOn</tt>. */
+	int index = -1;
+	/** The order the thread started waiting on <tt>waitingOn</tt>. */
+	long waitNumber;
+    }
+
+    /**
+     * What a thread had left on a queue when it last left it.
+     */
+    private static class Remainder {
+	/** Its pass less the global pass of the queue. */
+	long remain;
+	/** Its stride at the time. */
+	long stride;
+    }
+
+    /**
+     * Return <i>value</i> * <i>newStride</i> / <i>oldStride</i>, rounded
+     * toward zero, without overflowing. The product is only widened to a
+     * <tt>BigInteger</tt> if it does not fit in a <tt>long</tt>.
+     */
+    private static long scale(long value, long newStride, long oldStride) {
+	long high = Math.multiplyHigh(value, newStride);
+	long low = value * newStride;
+	if (high == (low >> 63))
+	    return low / oldStride;
+
+	return BigInteger.valueOf(value)
+	    .multiply(BigInteger.valueOf(newStride))
+	    .divide(BigInteger.valueOf(oldStride)).longValue();
+    }
+}
@@ -41,9 +41,10 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and run the
+     * <tt>Benchmark</tt>s if <tt>ThreadedKernel.benchmark</tt> is set. Note
+     * that the autograder never calls this method, so it is safe to put
+     * additional tests here.
      */	
     public void selfTest() {
 	//KThread.selfTest();
@@ -52,10 +53,17 @@ public class ThreadedKernel extends Kernel {
 	//ReactWater.selfTest();
 	//Alarm.selfTest();
 	//Semaphore.selfTest();
+	//PriorityScheduler.selfTest();
+	//LotteryScheduler.selfTest();
+	//StrideScheduler.selfTest();
 	SynchList.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+
+	int operations = Config.getInteger("ThreadedKernel.benchmark", 0);
+	if (operations > 0)
+	    Benchmark.run(operations);
     }
     
     /**
@@ -87,4 +95,5 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
 }
@@ -0,0 +1,252 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor among threads in proportion to the
+ * number of tickets each holds. The priority of a thread is its number of
+ * tickets. Subclasses decide how a queue uses the tickets to choose the next
+ * thread.
+ *
+ * <p>
+ * Tickets are transferred through locks and through joins: a thread holding a
+ * queue that transfers priority receives the tickets of every thread waiting
+ * on it, in addition to its own. Unlike priorities, these tickets add up.
+ * Each thread caches the sum of the tickets donated to it; when the tickets
+ * of a waiting thread change, the difference is passed along the chain of
+ * holders.
+ *
+ * @see	nachos.threads.LotteryScheduler
+ * @see	nachos.threads.StrideScheduler
+ */
+public abstract class TicketScheduler extends Scheduler {
+    /**
+     * Allocate a new ticket scheduler.
+     */
+    public TicketScheduler() {
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getTicketState(thread).tickets;
+    }
+
+    /**
+     * Return the number of tickets the specified thread holds, including
+     * those donated to it, or <tt>Integer.MAX_VALUE</tt> if that is more.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getTicketState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getTicketState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread, creating it with
+     * <tt>newTicketState()</tt> if it has none.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected TicketState getTicketState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = newTicketState(thread);
+
+	return (TicketState) thread.schedulingState;
+    }
+
+    /**
+     * Allocate the scheduling state of a thread this scheduler has not seen
+     * before.
+     *
+     * @param	thread	the thread.
+     * @return	its new scheduling state.
+     */
+    protected abstract TicketState newTicketState(KThread thread);
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps the total tickets of its waiting
+     * threads, and donates them to its holder if it transfers priority.
+     */
+    protected abstract class TicketQueue extends ThreadQueue {
+	TicketQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    TicketState state = getTicketState(thread);
+	    if (holder != state)
+		setHolder(state);
+	}
+
+	/**
+	 * Change the total tickets waiting, and the tickets donated to the
+	 * holder.
+	 *
+	 * @param	delta	the change in the tickets waiting.
+	 */
+	void changeTickets(long delta) {
+	    totalTickets += delta;
+
+	    if (transferPriority && holder != null) {
+		holder.donatedTickets += delta;
+		holder.updateEffectiveTickets();
+	    }
+	}
+
+	/**
+	 * Give access to the specified thread. If this queue transfers
+	 * tickets, the tickets waiting are donated to the new holder instead
+	 * of the previous one.
+	 *
+	 * @param	newHolder	the thread with access, or <tt>null</tt>.
+	 */
+	void setHolder(TicketState newHolder) {
+	    if (transferPriority && holder != null) {
+		holder.donatedTickets -= totalTickets;
+		holder.updateEffectiveTickets();
+	    }
+
+	    holder = newHolder;
+
+	    if (transferPriority && holder != null) {
+		holder.donatedTickets += totalTickets;
+		holder.updateEffectiveTickets();
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that has access, or <tt>null</tt>. */
+	TicketState holder = null;
+	/** The sum of the tickets of the waiting threads. */
+	long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, and the tickets donated
+     * to it.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected abstract class TicketState {
+	/**
+	 * Allocate a new <tt>TicketState</tt> object and associate it with
+	 * the specified thread. The subclass must call <tt>setTickets()</tt>
+	 * once it is ready for <tt>effectiveTicketsChanged()</tt>.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public TicketState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    this.tickets = tickets;
+
+	    updateEffectiveTickets();
+	}
+
+	/**
+	 * Recompute the effective tickets of the associated thread, and if
+	 * they changed, call <tt>effectiveTicketsChanged()</tt>.
+	 */
+	void updateEffectiveTickets() {
+	    long effective = tickets + donatedTickets;
+	    long delta = effective - effectiveTickets;
+	    if (delta == 0)
+		return;
+
+	    effectiveTickets = effective;
+
+	    effectiveTicketsChanged(delta);
+	}
+
+	/**
+	 * The effective tickets of the associated thread changed. Update the
+	 * queue it is waiting on, if any, which passes the difference on to
+	 * the queue's holder.
+	 *
+	 * @param	delta	the change in its effective tickets.
+	 */
+	abstract void effectiveTicketsChanged(long delta);
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets;
+	/** The tickets donated by the waiters on the queues it holds. */
+	protected long donatedTickets = 0;
+	/** The tickets it holds in total. */
+	protected long effectiveTickets = 0;
+    }
+}
@@ -0,0 +1,97 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The kernel's wait-for graph. Each blocked thread has an edge to the
+ * resource it is waiting for, added by <tt>Lock.acquire()</tt>,
+ * <tt>KThread.join()</tt>, <tt>Semaphore.P()</tt> and
+ * <tt>Condition2.sleep()</tt> just before the thread sleeps, and removed by
+ * <tt>KThread.ready()</tt> when it is woken. A lock is owned by the thread
+ * holding it, and a thread being joined is owned by itself; semaphores and
+ * condition variables have no owner, so a thread waiting on one can be woken
+ * by any thread, and is never part of a cycle.
+ *
+ * <p>
+ * A thread waits for one resource at a time, and every resource has at most
+ * one owner, so the waits leading out of a thread form a single chain. Before
+ * a thread blocks, <tt>waitFor()</tt> follows the chain from the resource;
+ * if the chain leads back to the thread, blocking would close a cycle and
+ * the edge is not added. The graph therefore never has a cycle, and a check
+ * costs one step for each thread in the chain.
+ */
+final class WaitForGraph {
+    private WaitForGraph() {
+    }
+
+    /**
+     * Record that the current thread is about to block waiting for the
+     * specified resource, unless that would close a cycle. Interrupts must be
+     * disabled.
+     *
+     * @param	resource	the <tt>Lock</tt>, <tt>KThread</tt>,
+     *				<tt>Semaphore</tt> or <tt>Condition2</tt> the
+     *				current thread will wait for.
+     * @return	<tt>true</tt> if the edge was added, or <tt>false</tt> if
+     *		the current thread would be waiting for itself.
+     */
+    static boolean waitFor(Object resource) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+	for (KThread owner = ownerOf(resource); owner != null;
+	     owner = ownerOf(owner.waitingFor)) {
+	    if (owner == thread)
+		return false;
+	}
+
+	thread.waitingFor = resource;
+	return true;
+    }
+
+    /**
+     * Describe the cycle the current thread would close by waiting for the
+     * specified resource, one wait per line, starting with the current
+     * thread. <tt>waitFor(resource)</tt> must have returned <tt>false</tt>.
+     *
+     * @param	resource	the resource the current thread would wait for.
+     * @return	the threads and resources in the cycle.
+     */
+    static String describeCycle(Object resource) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+	StringBuffer cycle = new StringBuffer();
+
+	KThread waiter = thread;
+	do {
+	    cycle.append("\n\t" + waiter + " waits " + describe(resource));
+	    waiter = ownerOf(resource);
+	    resource = waiter.waitingFor;
+	} while (waiter != thread);
+
+	return cycle.toString();
+    }
+
+    /**
+     * Return the thread that must run before a thread waiting for the
+     * specified resource can be woken.
+     */
+    private static KThread ownerOf(Object resource) {
+	if (resource instanceof Lock)
+	    return ((Lock) resource).getHolder();
+	else if (resource instanceof KThread)
+	    return (KThread) resource;
+	else
+	    return null;
+    }
+
+    private static String describe(Object resource) {
+	if (resource instanceof Lock)
+	    return "for a lock held by " + ownerOf(resource);
+	else if (resource instanceof KThread)
+	    return "to join " + resource;
+	else
+	    return "on " + resource;
+    }
+}
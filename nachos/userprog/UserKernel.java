@@ -42,6 +42,11 @@ public class UserKernel extends ThreadedKernel {
 		
 		//Initialize the pageLock
 		pageLock = new Lock();
+		
+		//Report the number of free pages as a metric
+		Machine.metrics().gauge("userprog.freePages", new Metrics.Gauge() {
+			public long value() { return globalFreePageList.size(); }
+		    });
     }
 
     /**
@@ -111,6 +116,11 @@ public class UserKernel extends ThreadedKernel {
      * program in it. The name of the shell program it must run is returned by
      * <tt>Machine.getShellProgramName()</tt>.
      *
+     * <p>
+     * If <tt>Kernel.restoreSnapshot</tt> names a snapshot saved by an earlier
+     * run with <tt>Kernel.saveSnapshot</tt>, the shell continues from that
+     * snapshot instead of being loaded from its executable.
+     *
      * @see	nachos.machine.Machine#getShellProgramName
      */
     public void run() {
@@ -119,7 +129,11 @@ public class UserKernel extends ThreadedKernel {
 
 	UserProcess process = UserProcess.newUserProcess();
 	String shellProgram = Machine.getShellProgramName();	
-	Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+	String snapshotFile = Config.getString("Kernel.restoreSnapshot", null);
+	if (snapshotFile != null)
+	    Lib.assertTrue(process.executeSnapshot(shellProgram, snapshotFile));
+	else
+	    Lib.assertTrue(process.execute(shellProgram, new String[] { }));
 	
 	KThread.currentThread().finish();
     }
@@ -32,6 +32,7 @@ public class UserProcess {
     	//Task 1
     	processID = numProcesses;
     	numProcesses++;
+    	numProcessesCreated.increment();
     	localFileArray = new OpenFile[16];
     	globalFileRefArray = new FileReference[16];
     	
@@ -81,6 +82,51 @@ public class UserProcess {
 
     }
 
+    /**
+     * Continue the program saved in the specified snapshot, instead of
+     * loading an executable. The snapshot must have been saved by the first
+     * process of an earlier run (see <tt>Kernel.saveSnapshot</tt>), so this
+     * process gets the same physical pages. The machine is restored when the
+     * new thread starts running.
+     *
+     * @param	name	the name of the program saved in the snapshot.
+     * @param	fileName	the host file containing the snapshot.
+     * @return	<tt>true</tt> if the snapshot was successfully loaded.
+     */
+    public boolean executeSnapshot(String name, String fileName) {
+	Lib.debug(dbgProcess, "UserProcess.executeSnapshot(\"" + fileName
+		  + "\")");
+
+	snapshot = Machine.loadSnapshot(fileName);
+	TranslationEntry[] saved = snapshot.getPageTable();
+	if (saved == null) {
+	    Lib.debug(dbgProcess, "\tno page table in snapshot");
+	    return false;
+	}
+
+	numPages = saved.length;
+	try {
+	    pageTable = ((UserKernel)Kernel.kernel).getPages(numPages);
+	}
+	catch (InsufficientFreePagesException e) {
+	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	    return false;
+	}
+
+	for (int i=0; i<numPages; i++) {
+	    Lib.assertTrue(pageTable[i].ppn == saved[i].ppn,
+			   "snapshot was saved with different physical pages");
+	    pageTable[i].vpn = saved[i].vpn;
+	    pageTable[i].readOnly = saved[i].readOnly;
+	    pageTable[i].used = saved[i].used;
+	    pageTable[i].dirty = saved[i].dirty;
+	}
+
+	new UThread(this).setName(name).fork();
+
+	return true;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -100,9 +146,9 @@ public class UserProcess {
      * This method is responsible for every memory access executed by a user process. First
      * the virtual addesses are translated into physical addresses which is then validated.
      * If the address is valid the method accesses the physical memory. If isRead is set
-     * to true then a section of memory is copied into data via the arraycopy method.
+     * to true then a section of memory is copied into data via the processor's readMemory method.
      * If isRead is false and the page isn't readOnly, data is copied into a section of
-     * physical memory again via arraycopy. The return value is the amount of bytes accessed.
+     * physical memory via writeMemory. The return value is the amount of bytes accessed.
      */
     public int accessMemory(int vaddr, byte[] data, int offset, int length, boolean isRead){
     	//Get the virtual page number and virtual offset
@@ -115,24 +161,24 @@ public class UserProcess {
     	
     	//Calculate the physical address and memory available
     	int addr = entry.ppn * pageSize + vOffset;
-    	byte[] memory = Machine.processor().getMemory();
+    	int memoryLength = Machine.processor().getNumPhysPages() * pageSize;
     	
     	//If the physical address is out of bounds return 0
-    	if(addr < 0 || addr > memory.length || !entry.valid)
+    	if(addr < 0 || addr > memoryLength || !entry.valid)
     		return 0;
     		
     	//Set the amount of bytes accessed
-    	int amount = Math.min(length, memory.length - addr);
+    	int amount = Math.min(length, memoryLength - addr);
     	//If the method is reading
     	if(isRead)
     		//Copy from memory into data
-    		System.arraycopy(memory, addr, data, offset, amount);
+    		Machine.processor().readMemory(addr, data, offset, amount);
     	//If the method is writing
     	else
     		//And the page is not readOnly
     		if(!entry.readOnly)
     			//Copy into memory from data
-    			System.arraycopy(data, offset, memory, addr, amount);
+    			Machine.processor().writeMemory(addr, data, offset, amount);
     		else
     			//If if is read only return 0
     			return 0;
@@ -423,8 +469,24 @@ public class UserProcess {
      * start function, set the stack pointer register to point at the top of
      * the stack, set the A0 and A1 registers to argc and argv, respectively,
      * and initialize all other registers to 0.
+     *
+     * <p>
+     * If this process was started by <tt>executeSnapshot()</tt>, the machine
+     * is restored from the snapshot instead. Otherwise, if this is the first
+     * process and <tt>Kernel.saveSnapshot</tt> names a file, a snapshot is
+     * saved there once the registers are set. Saving reseeds
+     * <tt>Lib.random()</tt> with a seed stored in the snapshot, so from then
+     * on this run draws different random numbers than it would have without
+     * <tt>Kernel.saveSnapshot</tt>, but the same ones as every run restored
+     * from the snapshot.
      */
     public void initRegisters() {
+	if (snapshot != null) {
+	    snapshot.restore();
+	    snapshot = null;
+	    return;
+	}
+
 	Processor processor = Machine.processor();
 
 	// by default, everything's 0
@@ -438,6 +500,10 @@ public class UserProcess {
 	// initialize the first two argument registers to argc and argv
 	processor.writeRegister(Processor.regA0, argc);
 	processor.writeRegister(Processor.regA1, argv);
+
+	String snapshotFile = Config.getString("Kernel.saveSnapshot", null);
+	if (processID == 0 && snapshotFile != null)
+	    Machine.saveSnapshot(snapshotFile, pageTable);
     }
 
 	/**
@@ -886,6 +952,8 @@ public class UserProcess {
      * @return	the value to be returned to the user.
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		numSyscalls.increment();
+		
 		switch (syscall) {
 			case syscallHalt:
 			    return handleHalt();
@@ -1010,9 +1078,16 @@ public class UserProcess {
     
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The snapshot to restore when this process starts, if any. */
+    private Snapshot snapshot = null;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
+
+    private static final Metrics.Counter numProcessesCreated =
+	Machine.metrics().counter("userprog.processes");
+    private static final Metrics.Counter numSyscalls =
+	Machine.metrics().counter("userprog.syscalls");
     
     //Task 1 variables
     private static int numProcesses = 0;